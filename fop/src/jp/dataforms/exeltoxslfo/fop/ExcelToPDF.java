@@ -0,0 +1,245 @@
+package jp.dataforms.exeltoxslfo.fop;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FopFactory;
+import org.apache.fop.apps.MimeConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import jp.dataforms.exeltoxslfo.ExcelToXSLFO;
+
+/**
+ * ExcelシートからPDFを作成します。
+ * <pre>
+ * ExcelToXSLFOの出力をSAXイベントとしてApache FOPに直接渡すため、
+ * XSL-FOファイルの作成と再解析を行わずに1回の処理でPDFを作成します。
+ * FopFactoryは設定ファイル毎に作成したものを共有するので、
+ * 2回目以降の変換ではフォントの検出結果がそのまま利用されます。
+ * </pre>
+ */
+public class ExcelToPDF {
+	/**
+	 * Logger.
+	 */
+	private static Logger logger = LogManager.getLogger(ExcelToPDF.class);
+
+	/**
+	 * 設定ファイル毎のFopFactory。
+	 */
+	private static Map<String, FopFactory> fopFactoryMap = new HashMap<String, FopFactory>();
+
+	/**
+	 * XSL-FOへの変換処理。
+	 */
+	private ExcelToXSLFO converter = null;
+
+	/**
+	 * FOPの設定ファイルのパス。
+	 */
+	private String configFile = null;
+
+	/**
+	 * 出力するPDFファイルのパス。
+	 */
+	private String pdfFile = null;
+
+	/**
+	 * コンストラクタ。
+	 */
+	public ExcelToPDF() {
+		this.converter = new ExcelToXSLFO();
+	}
+
+	/**
+	 * XSL-FOへの変換処理を取得します。
+	 * <pre>
+	 * 入力ファイルやシート、分割方法等はこのオブジェクトに設定します。
+	 * </pre>
+	 * @return XSL-FOへの変換処理。
+	 */
+	public ExcelToXSLFO getConverter() {
+		return converter;
+	}
+
+	/**
+	 * FOPの設定ファイルのパスを取得します。
+	 * @return FOPの設定ファイルのパス。
+	 */
+	public String getConfigFile() {
+		return configFile;
+	}
+
+	/**
+	 * FOPの設定ファイルのパスを設定します。
+	 * @param configFile FOPの設定ファイルのパス。
+	 */
+	public void setConfigFile(final String configFile) {
+		this.configFile = configFile;
+	}
+
+	/**
+	 * 出力するPDFファイルのパスを取得します。
+	 * @return 出力するPDFファイルのパス。
+	 */
+	public String getPdfFile() {
+		return pdfFile;
+	}
+
+	/**
+	 * 出力するPDFファイルのパスを設定します。
+	 * @param pdfFile 出力するPDFファイルのパス。
+	 */
+	public void setPdfFile(final String pdfFile) {
+		this.pdfFile = pdfFile;
+	}
+
+	/**
+	 * 共有するFopFactoryを取得します。
+	 * <pre>
+	 * 設定ファイル毎に1度だけFopFactoryを作成し、以降はそれを返します。
+	 * 設定ファイルを指定しない場合は、カレントディレクトリを基準URIとするFopFactoryを返します。
+	 * </pre>
+	 * @param configFile FOPの設定ファイルのパス。
+	 * @return FopFactory。
+	 * @throws Exception 例外。
+	 */
+	public static synchronized FopFactory getFopFactory(final String configFile) throws Exception {
+		String key = "";
+		if (configFile != null) {
+			key = new File(configFile).getCanonicalPath();
+		}
+		FopFactory factory = fopFactoryMap.get(key);
+		if (factory == null) {
+			if (configFile == null) {
+				factory = FopFactory.newInstance(new File(".").toURI());
+			} else {
+				factory = FopFactory.newInstance(new File(key));
+			}
+			fopFactoryMap.put(key, factory);
+			logger.debug("FopFactory created. config=" + key);
+		}
+		return factory;
+	}
+
+	/**
+	 * ExcelファイルからPDFを作成し、指定されたストリームに出力します。
+	 * @param out 出力先。
+	 * @throws Exception 例外。
+	 */
+	public void convert(final OutputStream out) throws Exception {
+		FopFactory factory = getFopFactory(this.configFile);
+		FOUserAgent ua = factory.newFOUserAgent();
+		Fop fop = factory.newFop(MimeConstants.MIME_PDF, ua, out);
+		this.converter.convert(fop.getDefaultHandler());
+	}
+
+	/**
+	 * ExcelファイルからPDFファイルを作成します。
+	 * <pre>
+	 * 変換に失敗した場合は、作成途中のPDFファイルを削除します。
+	 * </pre>
+	 * @throws Exception 例外。
+	 */
+	public void convert() throws Exception {
+		File file = new File(this.pdfFile);
+		boolean completed = false;
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			this.convert(out);
+			completed = true;
+		} finally {
+			out.close();
+			if (!completed && !file.delete()) {
+				logger.warn("cannot delete " + this.pdfFile);
+			}
+		}
+	}
+
+	/**
+	 * 引数指定の例外。
+	 *
+	 */
+	private class ArgException extends Exception {
+
+	}
+
+	/**
+	 * コマンドラインを解析します。
+	 * @param args コマンドライン引数。
+	 * @throws Exception 例外。
+	 */
+	private void parseAargs(final String[] args) throws Exception {
+		if (args.length >= 2) {
+			for (int i = 0; i < args.length; i++) {
+				if ("-s".equals(args[i])) {
+					this.converter.setSheetIndex(Integer.parseInt(args[i + 1]));
+					i++;
+				} else if ("-c".equals(args[i])) {
+					this.setConfigFile(args[i + 1]);
+					i++;
+				} else if ("-split".equals(args[i])) {
+					if ("body".equals(args[i + 1])) {
+						this.converter.setSplitMode(ExcelToXSLFO.SplitMode.TABLE_BODY);
+					} else if ("page".equals(args[i + 1])) {
+						this.converter.setSplitMode(ExcelToXSLFO.SplitMode.PAGE_SEQUENCE);
+					} else {
+						throw new ArgException();
+					}
+					i++;
+				} else if ("-rows".equals(args[i])) {
+					this.converter.setSplitRows(Integer.parseInt(args[i + 1]));
+					i++;
+				} else if ("-notrim".equals(args[i])) {
+					this.converter.setTrimRange(false);
+				} else if ("-nocollapse".equals(args[i])) {
+					this.converter.setCollapseEmptyCells(false);
+				} else {
+					if (this.converter.getExcelFile() == null) {
+						this.converter.setExcelFile(args[i]);
+					} else if (this.getPdfFile() == null) {
+						this.setPdfFile(args[i]);
+					} else {
+						throw new ArgException();
+					}
+				}
+			}
+			if (this.converter.getExcelFile() == null || this.getPdfFile() == null) {
+				throw new ArgException();
+			}
+		} else {
+			throw new ArgException();
+		}
+	}
+
+	/**
+	 * メイン処理。
+	 *
+	 * @param args コマンドライン引数。
+	 */
+	public static void main(final String[] args) {
+		ExcelToPDF conv = new ExcelToPDF();
+		try {
+			conv.parseAargs(args);
+			conv.convert();
+		} catch (ArgException e) {
+			System.out.println("excel2pdf [options] excelfile pdffile");
+			System.out.println("options:");
+			System.out.println("-s sheetidx");
+			System.out.println("-c fopconfig");
+			System.out.println("-split {body|page}");
+			System.out.println("-rows splitrows");
+			System.out.println("-notrim");
+			System.out.println("-nocollapse");
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+#!/bin/sh
+# AppCDSのアーカイブの有無による起動時間の差を計測する。
+# usage: cds-bench.sh [回数]
+# アーカイブ(excel2xslfo.jsa)が無いか使用できない場合は、sample.xlsxを変換して作成する(Java 13以降が必要)。
+# アーカイブは作成したディレクトリでのみ有効なため、ディレクトリを移動した場合もここで作り直す。
+SCRIPT_DIR=$(cd "$(dirname "${0}")" && pwd)
+if [ "$JAVA_HOME" = "" ]; then
+	JAVACMD=java
+else
+	JAVACMD=$JAVA_HOME/bin/java
+fi
+COUNT=${1:-10}
+CP="$SCRIPT_DIR/excel2xslfo.jar:$SCRIPT_DIR/lib/*"
+MAIN=jp.dataforms.exeltoxslfo.ExcelToXSLFO
+SAMPLE=$SCRIPT_DIR/sample.xlsx
+OUT=${TMPDIR:-/tmp}/cds-bench.$$.fo
+JSA=$SCRIPT_DIR/excel2xslfo.jsa
+# アーカイブが使用できるか確認する。
+check_archive() {
+	[ -f "$JSA" ] && $JAVACMD -XX:SharedArchiveFile="$JSA" -Xshare:on -Xlog:cds=off -cp "$CP" $MAIN "$SAMPLE" "$OUT" > /dev/null 2>&1
+}
+if ! check_archive; then
+	echo "creating $JSA"
+	rm -f "$JSA"
+	$JAVACMD -XX:ArchiveClassesAtExit="$JSA" -Xlog:cds=off -Xlog:cds+dynamic=off -cp "$CP" $MAIN "$SAMPLE" "$OUT" || exit 1
+	if ! check_archive; then
+		echo "cannot use $JSA" >&2
+		exit 1
+	fi
+fi
+
+# 指定オプションで指定回数変換し、1回当たりの平均時間(ms)を出力する。
+measure() {
+	START=$(date +%s%N)
+	i=0
+	while [ $i -lt $COUNT ]; do
+		$JAVACMD "$@" -cp "$CP" $MAIN "$SAMPLE" "$OUT" > /dev/null
+		i=$((i + 1))
+	done
+	END=$(date +%s%N)
+	echo $(( (END - START) / COUNT / 1000000 ))
+}
+
+DEFAULT_MS=$(measure -Xshare:auto)
+CDS_MS=$(measure -XX:SharedArchiveFile="$JSA" -Xshare:auto)
+rm -f "$OUT"
+echo "runs:        $COUNT"
+echo "default CDS: $DEFAULT_MS ms"
+echo "AppCDS:      $CDS_MS ms"
+if [ $DEFAULT_MS -gt 0 ]; then
+	echo "reduction:   $(( (DEFAULT_MS - CDS_MS) * 100 / DEFAULT_MS ))%"
+fi
@@ -0,0 +1,13 @@
+@echo off
+set SCRIPT_DIR=%~dp0
+if "%JAVA_HOME%" == "" goto noJavaHome
+if not exist "%JAVA_HOME%\bin\java.exe" goto noJavaHome
+if "%JAVACMD%" == "" set JAVACMD=%JAVA_HOME%\bin\java
+goto runApp
+:noJavaHome
+if "%JAVACMD%" == "" set JAVACMD=java
+:runApp
+set CDSOPTS=
+if exist "%SCRIPT_DIR%excel2xslfo.jsa" set CDSOPTS=-XX:SharedArchiveFile="%SCRIPT_DIR%excel2xslfo.jsa" -Xshare:auto -Xlog:cds=off -Xlog:cds+dynamic=off
+set CP=%SCRIPT_DIR%excel2xslfo.jar;%SCRIPT_DIR%lib\*
+"%JAVACMD%" %CDSOPTS% %JAVAOPTS% -Dexcel2xslfo.class.path="%CP%" -cp "%CP%" jp.dataforms.exeltoxslfo.BatchConverter %*
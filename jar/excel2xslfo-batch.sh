@@ -0,0 +1,15 @@
+#!/bin/sh
+SCRIPT_DIR=$(cd "$(dirname "${0}")" && pwd)
+if [ "$JAVA_HOME" = "" ]; then
+	JAVACMD=java
+else
+	JAVACMD=$JAVA_HOME/bin/java
+fi
+# AppCDSのアーカイブがあれば使用する(使用できない場合は無視される)。
+CDSOPTS=
+if [ -f "$SCRIPT_DIR/excel2xslfo.jsa" ]; then
+	CDSOPTS="-XX:SharedArchiveFile=$SCRIPT_DIR/excel2xslfo.jsa -Xshare:auto -Xlog:cds=off -Xlog:cds+dynamic=off"
+fi
+# ワーカーもAppCDSのアーカイブと一致する展開前のクラスパスで起動する。
+CP="$SCRIPT_DIR/excel2xslfo.jar:$SCRIPT_DIR/lib/*"
+$JAVACMD $CDSOPTS $JAVAOPTS -Dexcel2xslfo.class.path="$CP" -cp "$CP" jp.dataforms.exeltoxslfo.BatchConverter $*
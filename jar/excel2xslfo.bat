@@ -7,4 +7,6 @@ goto runApp
 :noJavaHome
 if "%JAVACMD%" == "" set JAVACMD=java
 :runApp
-"%JAVACMD%" %JAVAOPTS% -cp %SCRIPT_DIR%excel2xslfo.jar;%SCRIPT_DIR%lib\* exeltoxslfo.ExcelToXSLFO %*
+set CDSOPTS=
+if exist "%SCRIPT_DIR%excel2xslfo.jsa" set CDSOPTS=-XX:SharedArchiveFile="%SCRIPT_DIR%excel2xslfo.jsa" -Xshare:auto -Xlog:cds=off -Xlog:cds+dynamic=off
+"%JAVACMD%" %CDSOPTS% %JAVAOPTS% -cp "%SCRIPT_DIR%excel2xslfo.jar;%SCRIPT_DIR%lib\*" jp.dataforms.exeltoxslfo.ExcelToXSLFO %*
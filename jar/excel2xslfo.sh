@@ -1,8 +1,13 @@
-#!/bin/sh
-SCRIPT_DIR=`dirname "${0}"`
-if [ "$JAVA_HOME" == "" ]; then
-	JAVACMD=java
-else
-	JAVACMD=$JAVA_HOME/bin/java
-fi
-$JAVACMD $JAVAOPTS -cp $SCRIPT_DIR/excel2xslfo.jar:$SCRIPT_DIR/lib/* exeltoxslfo.ExcelToXSLFO $*
+#!/bin/sh
+SCRIPT_DIR=$(cd "$(dirname "${0}")" && pwd)
+if [ "$JAVA_HOME" = "" ]; then
+	JAVACMD=java
+else
+	JAVACMD=$JAVA_HOME/bin/java
+fi
+# AppCDSのアーカイブがあれば使用する(使用できない場合は無視される)。
+CDSOPTS=
+if [ -f "$SCRIPT_DIR/excel2xslfo.jsa" ]; then
+	CDSOPTS="-XX:SharedArchiveFile=$SCRIPT_DIR/excel2xslfo.jsa -Xshare:auto -Xlog:cds=off -Xlog:cds+dynamic=off"
+fi
+$JAVACMD $CDSOPTS $JAVAOPTS -cp "$SCRIPT_DIR/excel2xslfo.jar:$SCRIPT_DIR/lib/*" jp.dataforms.exeltoxslfo.ExcelToXSLFO $*
@@ -0,0 +1,155 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * ヒープの使用量による変換の受付制御。
+ * <pre>
+ * 同じJVMで複数の変換を同時に実行する場合に、各変換の推定メモリ使用量の合計がヒープの予算を超えないように
+ * 変換の開始を待たせます。
+ * 待っている変換は到着順に開始し、推定メモリ使用量が予算そのものを超える変換はRejectedExecutionExceptionで拒否します。
+ * 複数のExcelToXSLFOのインスタンスに同じインスタンスを設定して使用します。
+ * </pre>
+ */
+public class AdmissionController {
+	/**
+	 * Logger.
+	 */
+	private static Logger logger = LogManager.getLogger(AdmissionController.class);
+
+	/**
+	 * ヒープの予算(バイト)。
+	 */
+	private long budget = 0;
+
+	/**
+	 * 受け付けた変換の推定メモリ使用量の合計(バイト)。
+	 */
+	private long used = 0;
+
+	/**
+	 * 受付を待っているスレッド。
+	 */
+	private Deque<Thread> queue = new ArrayDeque<Thread>();
+
+	/**
+	 * コンストラクタ。
+	 * <pre>
+	 * 最大ヒープサイズの3/4を予算とします。
+	 * </pre>
+	 */
+	public AdmissionController() {
+		this(Runtime.getRuntime().maxMemory() / 4 * 3);
+	}
+
+	/**
+	 * コンストラクタ。
+	 * @param budget ヒープの予算(バイト)。
+	 */
+	public AdmissionController(final long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * ヒープの予算を取得します。
+	 * @return ヒープの予算(バイト)。
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * 受け付けた変換の推定メモリ使用量の合計を取得します。
+	 * @return 推定メモリ使用量の合計(バイト)。
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * 推定メモリ使用量が予算を超えていないか確認します。
+	 * @param bytes 推定メモリ使用量(バイト)。
+	 * @param name 変換対象の名前。
+	 */
+	private void check(final long bytes, final String name) {
+		if (bytes > this.budget) {
+			throw new RejectedExecutionException("estimated memory " + (bytes >> 20) + "MB exceeds the budget "
+				+ (this.budget >> 20) + "MB: " + name);
+		}
+	}
+
+	/**
+	 * 変換の受付を待ちます。
+	 * <pre>
+	 * 先に待っている変換が無く、予算に空きがあれば受け付けます。
+	 * 指定時間内に受け付けられなかった場合は待ち行列に残ったままfalseを返すので、
+	 * 再度このメソッドを呼び出すか、待つのを止める場合はleave()を呼び出してください。
+	 * </pre>
+	 * @param bytes 推定メモリ使用量(バイト)。
+	 * @param name 変換対象の名前。
+	 * @param waitMillis 最大の待ち時間(ミリ秒)。
+	 * @return 受け付けた場合true。
+	 * @throws InterruptedException 割り込み。
+	 */
+	public synchronized boolean acquire(final long bytes, final String name, final long waitMillis) throws InterruptedException {
+		this.check(bytes, name);
+		Thread me = Thread.currentThread();
+		if (!this.queue.contains(me)) {
+			this.queue.add(me);
+		}
+		long end = System.currentTimeMillis() + waitMillis;
+		while (this.queue.peek() != me || this.used + bytes > this.budget) {
+			long wait = end - System.currentTimeMillis();
+			if (wait <= 0) {
+				return false;
+			}
+			this.wait(wait);
+		}
+		this.queue.poll();
+		this.used += bytes;
+		logger.debug("admitted " + name + ": " + (bytes >> 20) + "MB, used " + (this.used >> 20) + "/" + (this.budget >> 20) + "MB");
+		this.notifyAll();
+		return true;
+	}
+
+	/**
+	 * 待たずに受け付けられる場合のみ受け付けます。
+	 * <pre>
+	 * 待っている変換がある場合は、予算に空きがあっても受け付けません。
+	 * </pre>
+	 * @param bytes 推定メモリ使用量(バイト)。
+	 * @param name 変換対象の名前。
+	 * @return 受け付けた場合true。
+	 */
+	public synchronized boolean tryAcquire(final long bytes, final String name) {
+		this.check(bytes, name);
+		if (!this.queue.isEmpty() || this.used + bytes > this.budget) {
+			return false;
+		}
+		this.used += bytes;
+		return true;
+	}
+
+	/**
+	 * 受付の待ち行列から抜けます。
+	 */
+	public synchronized void leave() {
+		if (this.queue.remove(Thread.currentThread())) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * 受け付けた推定メモリ使用量を返却します。
+	 * @param bytes 推定メモリ使用量(バイト)。
+	 */
+	public synchronized void release(final long bytes) {
+		this.used -= bytes;
+		this.notifyAll();
+	}
+}
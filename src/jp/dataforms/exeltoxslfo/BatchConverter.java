@@ -0,0 +1,636 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 複数のExcelファイルを複数のプロセスで変換するバッチ処理。
+ * <pre>
+ * マニフェストファイルには1行に1つ、Excelファイルと出力ファイルをタブ区切りで記述します。
+ * 出力ファイルを省略した場合は、Excelファイルの拡張子を.foに変えたファイルに出力します。
+ * 空行と#で始まる行は無視します。
+ *
+ * ファイルをサイズの大きい順に、その時点の合計サイズが最も小さいシャードに割り当ててN個のシャードに分割し、
+ * シャード毎にワーカープロセスを起動して変換します。
+ * 分割結果はマニフェストとシャード数のみで決まるため、作業ディレクトリを共有する複数のマシンで
+ * -onlyで担当するシャードを指定して実行することもできます。
+ * ワーカーは変換毎に結果をシャード毎のログに出力し、最後にすべてのログをまとめた集計(summary.txt)を作成します。
+ *
+ * マニフェストの代わりにディレクトリを指定すると、ディレクトリ内のExcelファイル(*.xlsx, *.xls)を名前順に変換します。
+ * 変換が終わる毎に、Excelファイルの内容のハッシュ、オプション、出力ファイルのチェックサムを作業ディレクトリのジャーナルに記録します。
+ * 再実行した場合、ハッシュとオプションがジャーナルと同じで、出力ファイルのチェックサムも一致するファイルは変換を省略(SKIP)するため、
+ * 途中で止まったバッチは止まった所から再開し、変更の無いファイルは再変換しません。
+ * </pre>
+ */
+public class BatchConverter {
+	/**
+	 * Logger.
+	 */
+	private static Logger logger = LogManager.getLogger(BatchConverter.class);
+
+	/**
+	 * 変換対象のファイル。
+	 */
+	public static class Job {
+		/**
+		 * マニフェスト中の順番。
+		 */
+		private int index = 0;
+
+		/**
+		 * Excelファイルのパス。
+		 */
+		private String excelFile = null;
+
+		/**
+		 * 出力ファイルのパス。
+		 */
+		private String xslFoFile = null;
+
+		/**
+		 * Excelファイルのサイズ(バイト)。
+		 */
+		private long size = 0;
+
+		/**
+		 * コンストラクタ。
+		 * @param index マニフェスト中の順番。
+		 * @param excelFile Excelファイルのパス。
+		 * @param xslFoFile 出力ファイルのパス。
+		 */
+		public Job(final int index, final String excelFile, final String xslFoFile) {
+			this.index = index;
+			this.excelFile = excelFile;
+			this.xslFoFile = xslFoFile;
+			this.size = new File(excelFile).length();
+		}
+
+		/**
+		 * マニフェスト中の順番を取得します。
+		 * @return マニフェスト中の順番。
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Excelファイルのパスを取得します。
+		 * @return Excelファイルのパス。
+		 */
+		public String getExcelFile() {
+			return excelFile;
+		}
+
+		/**
+		 * 出力ファイルのパスを取得します。
+		 * @return 出力ファイルのパス。
+		 */
+		public String getXslFoFile() {
+			return xslFoFile;
+		}
+
+		/**
+		 * Excelファイルのサイズを取得します。
+		 * @return Excelファイルのサイズ(バイト)。
+		 */
+		public long getSize() {
+			return size;
+		}
+	}
+
+	/**
+	 * マニフェストファイル。
+	 */
+	private File manifest = null;
+
+	/**
+	 * 作業ディレクトリ。
+	 */
+	private File workDir = null;
+
+	/**
+	 * シャード数。
+	 */
+	private int shards = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * このマシンで実行するシャード。nullの場合はすべてのシャード。
+	 */
+	private Set<Integer> onlyShards = null;
+
+	/**
+	 * 集計のみ行うフラグ。
+	 */
+	private boolean mergeOnly = false;
+
+	/**
+	 * ワーカープロセスのJVMオプション。
+	 */
+	private List<String> jvmOptions = new ArrayList<String>();
+
+	/**
+	 * ExcelToXSLFOに渡すオプション。
+	 */
+	private List<String> options = new ArrayList<String>();
+
+	/**
+	 * マニフェストを読み込みます。
+	 * <pre>
+	 * ディレクトリを指定した場合は、ディレクトリ内のExcelファイルを名前順に変換対象とします。
+	 * </pre>
+	 * @param manifest マニフェストファイルまたはディレクトリ。
+	 * @return 変換対象のリスト。
+	 * @throws Exception 例外。
+	 */
+	public static List<Job> readManifest(final File manifest) throws Exception {
+		List<Job> ret = new ArrayList<Job>();
+		if (manifest.isDirectory()) {
+			File[] files = manifest.listFiles();
+			Arrays.sort(files);
+			for (File f: files) {
+				String name = f.getName().toLowerCase();
+				if (f.isFile() && !name.startsWith("~$") && (name.endsWith(".xlsx") || name.endsWith(".xls"))) {
+					ret.add(new Job(ret.size(), f.getPath(), getDefaultXslFoFile(f.getPath())));
+				}
+			}
+			return ret;
+		}
+		BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8);
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] f = line.split("\t");
+				String excel = f[0].trim();
+				String fo = (f.length > 1 && f[1].trim().length() > 0) ? f[1].trim() : getDefaultXslFoFile(excel);
+				ret.add(new Job(ret.size(), excel, fo));
+			}
+		} finally {
+			reader.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Excelファイルに対応する出力ファイルのパスを取得します。
+	 * @param excel Excelファイルのパス。
+	 * @return 拡張子を.foに変えたパス。
+	 */
+	public static String getDefaultXslFoFile(final String excel) {
+		int idx = excel.lastIndexOf('.');
+		if (idx > Math.max(excel.lastIndexOf('/'), excel.lastIndexOf('\\'))) {
+			return excel.substring(0, idx) + ".fo";
+		}
+		return excel + ".fo";
+	}
+
+	/**
+	 * 変換対象をファイルサイズが均等になるようにシャードに分割します。
+	 * <pre>
+	 * サイズの大きい順(同じサイズはマニフェストの順)に、合計サイズが最も小さいシャード
+	 * (同じ場合は番号の小さいシャード)に割り当てます。
+	 * 結果は変換対象とシャード数のみで決まります。
+	 * </pre>
+	 * @param jobList 変換対象のリスト。
+	 * @param shards シャード数。
+	 * @return シャード毎の変換対象のリスト(各リストはマニフェストの順)。
+	 */
+	public static List<List<Job>> split(final List<Job> jobList, final int shards) {
+		List<Job> sorted = new ArrayList<Job>(jobList);
+		Collections.sort(sorted, Comparator.comparingLong(Job::getSize).reversed().thenComparingInt(Job::getIndex));
+		List<List<Job>> ret = new ArrayList<List<Job>>();
+		long[] total = new long[shards];
+		for (int i = 0; i < shards; i++) {
+			ret.add(new ArrayList<Job>());
+		}
+		for (Job job: sorted) {
+			int min = 0;
+			for (int i = 1; i < shards; i++) {
+				if (total[i] < total[min]) {
+					min = i;
+				}
+			}
+			ret.get(min).add(job);
+			total[min] += job.getSize();
+		}
+		for (List<Job> list: ret) {
+			Collections.sort(list, Comparator.comparingInt(Job::getIndex));
+		}
+		return ret;
+	}
+
+	/**
+	 * シャードの変換対象ファイルを取得します。
+	 * @param shard シャード番号。
+	 * @return シャードの変換対象ファイル。
+	 */
+	private File getShardFile(final int shard) {
+		return new File(this.workDir, "shard-" + shard + ".txt");
+	}
+
+	/**
+	 * シャードの結果ログを取得します。
+	 * @param shard シャード番号。
+	 * @return シャードの結果ログ。
+	 */
+	private File getLogFile(final int shard) {
+		return new File(this.workDir, "shard-" + shard + ".log");
+	}
+
+	/**
+	 * バッチ処理を実行します。
+	 * @return すべての変換が成功した場合true。
+	 * @throws Exception 例外。
+	 */
+	public boolean run() throws Exception {
+		if (!this.mergeOnly) {
+			List<List<Job>> shardList = split(readManifest(this.manifest), this.shards);
+			this.workDir.mkdirs();
+			List<Process> processList = new ArrayList<Process>();
+			for (int i = 0; i < this.shards; i++) {
+				if (this.onlyShards != null && !this.onlyShards.contains(i)) {
+					continue;
+				}
+				this.writeShardFile(i, shardList.get(i));
+				processList.add(this.startWorker(i));
+			}
+			for (Process p: processList) {
+				p.waitFor();
+			}
+		}
+		return this.merge();
+	}
+
+	/**
+	 * シャードの変換対象ファイルを出力します。
+	 * @param shard シャード番号。
+	 * @param jobList シャードの変換対象のリスト。
+	 * @throws Exception 例外。
+	 */
+	private void writeShardFile(final int shard, final List<Job> jobList) throws Exception {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(this.getShardFile(shard)), StandardCharsets.UTF_8));
+		try {
+			for (Job job: jobList) {
+				out.print(job.getIndex() + "\t" + job.getExcelFile() + "\t" + job.getXslFoFile() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * このプロセスのAppCDSのオプションを取得します。
+	 * <pre>
+	 * 起動スクリプトがAppCDSのアーカイブを指定して起動した場合、ワーカーも同じアーカイブで起動します。
+	 * -Jで指定されたオプションにアーカイブの指定がある場合はそちらを優先します。
+	 * </pre>
+	 * @return AppCDSのオプション。
+	 */
+	private List<String> getSharedArchiveOptions() {
+		List<String> ret = new ArrayList<String>();
+		for (String opt: this.jvmOptions) {
+			if (opt.startsWith("-XX:SharedArchiveFile=")) {
+				return ret;
+			}
+		}
+		boolean archive = false;
+		for (String opt: ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (opt.startsWith("-XX:SharedArchiveFile=")) {
+				archive = true;
+				ret.add(opt);
+			} else if (opt.startsWith("-Xshare:") || opt.startsWith("-Xlog:cds")) {
+				ret.add(opt);
+			}
+		}
+		if (!archive) {
+			ret.clear();
+		}
+		return ret;
+	}
+
+	/**
+	 * シャードのワーカープロセスを起動します。
+	 * <pre>
+	 * ワーカーはこのプロセスと同じJava、クラスパス、AppCDSのアーカイブで起動し、標準出力と標準エラーはshard-N.outに出力します。
+	 * AppCDSはクラスパスが作成時と一致する場合のみ有効なため、起動スクリプトがシステムプロパティexcel2xslfo.class.pathで
+	 * 展開前のクラスパス("lib/*"等)を指定している場合はそれを使用します。
+	 * </pre>
+	 * @param shard シャード番号。
+	 * @return ワーカープロセス。
+	 * @throws Exception 例外。
+	 */
+	private Process startWorker(final int shard) throws Exception {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmd.addAll(this.getSharedArchiveOptions());
+		cmd.addAll(this.jvmOptions);
+		cmd.add("-cp");
+		cmd.add(System.getProperty("excel2xslfo.class.path", System.getProperty("java.class.path")));
+		cmd.add(BatchConverter.class.getName());
+		cmd.add("-worker");
+		cmd.add(this.getShardFile(shard).getPath());
+		cmd.add(this.getLogFile(shard).getPath());
+		cmd.addAll(this.options);
+		logger.info("start shard " + shard + ": " + cmd);
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(new File(this.workDir, "shard-" + shard + ".out"));
+		return pb.start();
+	}
+
+	/**
+	 * シャードの変換を実行します。
+	 * <pre>
+	 * 変換毎に"番号 結果(OK/SKIP/NG) 処理時間(ms) Excelファイル 出力ファイル メッセージ"をタブ区切りで結果ログに出力します。
+	 * 変換に失敗しても次のファイルの変換を続けます。
+	 * ジャーナルの記録からExcelファイルとオプションに変更が無く、出力ファイルも記録どおりの場合は変換を省略します。
+	 * </pre>
+	 * @param shardFile シャードの変換対象ファイル。
+	 * @param logFile 結果ログ。
+	 * @param options ExcelToXSLFOに渡すオプション。
+	 * @throws Exception 例外。
+	 */
+	public static void runWorker(final File shardFile, final File logFile, final List<String> options) throws Exception {
+		List<String[]> jobList = new ArrayList<String[]>();
+		for (String line: Files.readAllLines(shardFile.toPath(), StandardCharsets.UTF_8)) {
+			if (line.length() > 0) {
+				jobList.add(line.split("\t"));
+			}
+		}
+		String optionString = String.join(" ", options);
+		Map<String, String[]> journal = readJournal(shardFile.getAbsoluteFile().getParentFile());
+		File journalFile = new File(shardFile.getPath().replaceAll("\\.txt$", "") + ".journal");
+		PrintWriter jw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+		PrintWriter log = new PrintWriter(new OutputStreamWriter(new FileOutputStream(logFile), StandardCharsets.UTF_8));
+		try {
+			for (String[] job: jobList) {
+				long start = System.currentTimeMillis();
+				String status = "OK";
+				String message = "";
+				try {
+					String inputHash = getHash(new File(job[1]));
+					String[] entry = journal.get(job[1] + "\t" + job[2]);
+					File out = new File(job[2]);
+					if (entry != null && entry[0].equals(inputHash) && entry[1].equals(optionString)
+						&& out.isFile() && entry[2].equals(getHash(out))) {
+						status = "SKIP";
+					} else {
+						List<String> args = new ArrayList<String>(options);
+						args.add(job[1]);
+						args.add(job[2]);
+						ExcelToXSLFO conv = new ExcelToXSLFO();
+						conv.parseAargs(args.toArray(new String[0]));
+						conv.convertToFile();
+						jw.print(inputHash + "\t" + optionString + "\t" + getHash(out) + "\t" + job[1] + "\t" + job[2] + "\n");
+						jw.flush();
+					}
+				} catch (Throwable e) {
+					logger.error(job[1] + ": " + e.getMessage(), e);
+					status = "NG";
+					message = String.valueOf(e).replaceAll("[\t\r\n]", " ");
+				}
+				long time = System.currentTimeMillis() - start;
+				log.print(job[0] + "\t" + status + "\t" + time + "\t" + job[1] + "\t" + job[2] + "\t" + message + "\n");
+				log.flush();
+			}
+		} finally {
+			log.close();
+			jw.close();
+		}
+	}
+
+	/**
+	 * 作業ディレクトリのジャーナルを読み込みます。
+	 * <pre>
+	 * ジャーナルはシャード毎のファイル(shard-N.journal)に
+	 * "Excelファイルのハッシュ オプション 出力ファイルのハッシュ Excelファイル 出力ファイル"をタブ区切りで追記したものです。
+	 * シャード数を変えて再実行した場合も使用できるように、すべてのジャーナルを読み込みます。
+	 * 同じファイルの記録が複数ある場合は後のものを使用し、途中で切れた行は無視します。
+	 * </pre>
+	 * @param dir 作業ディレクトリ。
+	 * @return Excelファイルと出力ファイルをタブで連結したキー毎の記録。
+	 * @throws Exception 例外。
+	 */
+	private static Map<String, String[]> readJournal(final File dir) throws Exception {
+		Map<String, String[]> ret = new HashMap<String, String[]>();
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".journal"));
+		if (files == null) {
+			return ret;
+		}
+		Arrays.sort(files);
+		for (File f: files) {
+			for (String line: Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+				String[] e = line.split("\t", -1);
+				if (e.length == 5) {
+					ret.put(e[3] + "\t" + e[4], e);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * ファイルの内容のハッシュ(SHA-256)を取得します。
+	 * @param file ファイル。
+	 * @return 16進数のハッシュ。
+	 * @throws Exception 例外。
+	 */
+	private static String getHash(final File file) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		InputStream is = Files.newInputStream(file.toPath());
+		try {
+			byte[] buf = new byte[65536];
+			int len = 0;
+			while ((len = is.read(buf)) > 0) {
+				md.update(buf, 0, len);
+			}
+		} finally {
+			is.close();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte v: md.digest()) {
+			sb.append(Character.forDigit((v >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(v & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 結果ログの行が変換対象の結果かどうかを判定します。
+	 * @param f 結果ログの行のフィールド。
+	 * @param job 変換対象。
+	 * @return 変換対象のExcelファイルと出力ファイルが一致する場合true。
+	 */
+	private static boolean isResultOf(final String[] f, final Job job) {
+		return f[3].equals(job.getExcelFile()) && f[4].equals(job.getXslFoFile());
+	}
+
+	/**
+	 * シャード毎の結果ログを集計し、作業ディレクトリのsummary.txtに出力します。
+	 * <pre>
+	 * 結果ログが無いシャードの変換対象は未実行(MISSING)として出力します。
+	 * マニフェストの変更や-onlyでの実行により前回の結果ログが残っている場合に備えて、
+	 * ログのExcelファイルと出力ファイルが現在のマニフェストと一致する結果のみを使用し、
+	 * 一致しない変換対象も未実行として出力します。
+	 * </pre>
+	 * @return すべての変換が成功した場合true。
+	 * @throws Exception 例外。
+	 */
+	public boolean merge() throws Exception {
+		List<Job> jobList = readManifest(this.manifest);
+		List<List<Job>> shardList = split(jobList, this.shards);
+		String[] result = new String[jobList.size()];
+		int[] shardOf = new int[jobList.size()];
+		for (int i = 0; i < this.shards; i++) {
+			for (Job job: shardList.get(i)) {
+				shardOf[job.getIndex()] = i;
+			}
+			File log = this.getLogFile(i);
+			if (!log.exists()) {
+				continue;
+			}
+			for (String line: Files.readAllLines(log.toPath(), StandardCharsets.UTF_8)) {
+				String[] f = line.split("\t", -1);
+				if (f.length >= 6) {
+					int idx = Integer.parseInt(f[0]);
+					if (idx >= 0 && idx < result.length && isResultOf(f, jobList.get(idx))) {
+						result[idx] = line;
+					}
+				}
+			}
+		}
+		int ok = 0;
+		int skip = 0;
+		int ng = 0;
+		int missing = 0;
+		long time = 0;
+		List<String> lines = new ArrayList<String>();
+		for (Job job: jobList) {
+			String line = result[job.getIndex()];
+			if (line == null) {
+				missing++;
+				lines.add(job.getIndex() + "\tMISSING\t0\t" + shardOf[job.getIndex()] + "\t" + job.getExcelFile() + "\t" + job.getXslFoFile() + "\t");
+				continue;
+			}
+			String[] f = line.split("\t", -1);
+			if ("OK".equals(f[1])) {
+				ok++;
+			} else if ("SKIP".equals(f[1])) {
+				skip++;
+			} else {
+				ng++;
+			}
+			time += Long.parseLong(f[2]);
+			lines.add(f[0] + "\t" + f[1] + "\t" + f[2] + "\t" + shardOf[job.getIndex()] + "\t" + f[3] + "\t" + f[4] + "\t" + f[5]);
+		}
+		String header = "# shards=" + this.shards + " total=" + jobList.size() + " ok=" + ok + " skip=" + skip + " ng=" + ng + " missing=" + missing + " time(ms)=" + time;
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(this.workDir, "summary.txt")), StandardCharsets.UTF_8));
+		try {
+			out.print(header + "\n");
+			out.print("# index\tstatus\ttime(ms)\tshard\texcelfile\tfofile\tmessage\n");
+			for (String line: lines) {
+				out.print(line + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		System.out.println(header);
+		return ng == 0 && missing == 0;
+	}
+
+	/**
+	 * コマンドラインを解析します。
+	 * <pre>
+	 * 最後の引数をマニフェストファイルとし、バッチ処理のオプション以外はExcelToXSLFOに渡します。
+	 * マニフェストの代わりにディレクトリを指定することもできます。
+	 * </pre>
+	 * @param args コマンドライン引数。
+	 * @return 解析できた場合true。
+	 */
+	private boolean parseArgs(final String[] args) {
+		if (args.length < 1) {
+			return false;
+		}
+		for (int i = 0; i < args.length - 1; i++) {
+			if ("-shards".equals(args[i])) {
+				this.shards = Integer.parseInt(args[++i]);
+			} else if ("-workdir".equals(args[i])) {
+				this.workDir = new File(args[++i]);
+			} else if ("-only".equals(args[i])) {
+				this.onlyShards = new HashSet<Integer>();
+				for (String s: args[++i].split(",")) {
+					this.onlyShards.add(Integer.parseInt(s.trim()));
+				}
+			} else if ("-merge".equals(args[i])) {
+				this.mergeOnly = true;
+			} else if (args[i].startsWith("-J")) {
+				this.jvmOptions.add(args[i].substring(2));
+			} else {
+				this.options.add(args[i]);
+			}
+		}
+		this.manifest = new File(args[args.length - 1]);
+		if (this.workDir == null) {
+			this.workDir = new File(this.manifest.getPath() + ".work");
+		}
+		return this.shards > 0;
+	}
+
+	/**
+	 * メイン処理。
+	 *
+	 * @param args コマンドライン引数。
+	 */
+	public static void main(final String[] args) {
+		try {
+			if (args.length >= 3 && "-worker".equals(args[0])) {
+				List<String> options = new ArrayList<String>();
+				for (int i = 3; i < args.length; i++) {
+					options.add(args[i]);
+				}
+				runWorker(new File(args[1]), new File(args[2]), options);
+				return;
+			}
+			BatchConverter batch = new BatchConverter();
+			if (!batch.parseArgs(args)) {
+				System.out.println("excel2xslfo-batch [options] manifest");
+				System.out.println("options:");
+				System.out.println("-shards n");
+				System.out.println("-workdir dir");
+				System.out.println("-only shard[,shard...]");
+				System.out.println("-merge");
+				System.out.println("-J<jvmoption>");
+				System.out.println("(other options are passed to excel2xslfo)");
+				return;
+			}
+			if (!batch.run()) {
+				System.exit(1);
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			System.exit(2);
+		}
+	}
+}
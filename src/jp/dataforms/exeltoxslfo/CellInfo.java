@@ -2,9 +2,16 @@ package jp.dataforms.exeltoxslfo;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.poi.hssf.usermodel.HSSFFont;
+import org.apache.poi.hssf.usermodel.HSSFPalette;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.HSSFColor;
 import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Color;
+import org.apache.poi.ss.usermodel.FillPatternType;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.HorizontalAlignment;
 import org.apache.poi.ss.usermodel.VerticalAlignment;
@@ -15,7 +22,10 @@ import org.apache.poi.xssf.usermodel.XSSFFont;
 
 /**
  * セル情報クラス。
- *
+ * <pre>
+ * xlsx(XSSF)とxls(HSSF)のセルスタイルを同じXSL-FOの属性に変換します。
+ * xlsの色はワークブックのパレットから取得します。
+ * </pre>
  */
 public class CellInfo {
 
@@ -40,11 +50,11 @@ public class CellInfo {
 	 */
 	private CellStyle bottomRightStyle = null;
 
-
 	/**
-	 * 説結合によって表示されないセルを示すフラグ。
+	 * セルのスタイルが罫線または塗りつぶしを持つかどうか(未判定の場合null)。
 	 */
-	private boolean hidden = false;
+	private Boolean visibleStyle = null;
+
 
 	/**
 	 * Row spanの値。
@@ -66,6 +76,16 @@ public class CellInfo {
 	 */
 	private CellType cellType = null;
 
+	/**
+	 * イメージフィールドの画像タグ。
+	 */
+	private String imageFieldTag = null;
+
+	/**
+	 * イメージフィールドのパラメータ。
+	 */
+	private ImageFieldParameter imageFieldParameter = null;
+
 	/**
 	 * 行。
 	 */
@@ -121,40 +141,85 @@ public class CellInfo {
 	}
 
 	/**
-	 * セル結合によって非表示になったセルを判定します。
-	 * @return 非表示セルの場合true。
+	 * 表示内容の無い空セルかどうかを判定します。
+	 * <pre>
+	 * 結合の起点ではなく、値、罫線、塗りつぶしのいずれも持たないセルを空セルとします。
+	 * 結合によって非表示になるかどうかは判定しません。
+	 * 空セルは隣接する空セルと1つのセルにまとめてもレイアウトが変わりません。
+	 * </pre>
+	 * @return 空セルの場合true。
 	 */
-	public boolean isHidden() {
-		return hidden;
+	public boolean isBlank() {
+		if (this.rowSpan > 1 || this.columnSpan >= 0) {
+			return false;
+		}
+		if (this.value != null && this.value.length() > 0) {
+			return false;
+		}
+		if (this.visibleStyle == null) {
+			this.visibleStyle = Boolean.valueOf(hasVisibleStyle(this.style));
+		}
+		return !this.visibleStyle.booleanValue();
 	}
 
 	/**
-	 * 非表示セルであることを設定します。
-	 * @param hidden 非表示セルの場合true。
+	 * セルのアトリビュートを取得します。
+	 * @param attrib アトリビュートを追加する属性リスト。
 	 */
-	public void setHidden(final boolean hidden) {
-		this.hidden = hidden;
+	public void getCellAttribute(final FoAttributes attrib) {
+		this.getSpanAttribute(attrib);
+		this.getStyleAttribute(attrib);
 	}
 
 	/**
-	 * セルのアトリビュートを取得します。
-	 * @return セルのアトリビュート文字列。
+	 * セル結合のアトリビュートを取得します。
+	 * @param attrib アトリビュートを追加する属性リスト。
 	 */
-	public String getCellAttribute() {
-		StringBuilder attrib = new StringBuilder();
+	public void getSpanAttribute(final FoAttributes attrib) {
 		if (this.getRowSpan() > 1) {
-			attrib.append(" number-rows-spanned=\"" + this.getRowSpan() + "\" ");
+			attrib.add("number-rows-spanned", this.getRowSpan());
 		}
 		if (this.getColumnSpan() >= 0) {
-			attrib.append(" number-columns-spanned=\"" + this.getColumnSpan() + "\" ");
+			attrib.add("number-columns-spanned", this.getColumnSpan());
 		}
+	}
+
+	/**
+	 * セルスタイルのアトリビュートを取得します。
+	 * <pre>
+	 * 追加される属性はセルスタイルと右下のスタイル、数値セルかどうかのみで決まるため、
+	 * getStyleKey()が同じ値を返すセル同士では同じ属性になります。
+	 * </pre>
+	 * @param attrib アトリビュートを追加する属性リスト。
+	 */
+	public void getStyleAttribute(final FoAttributes attrib) {
 		if (this.style != null) {
 			this.getAlignmentAttribute(attrib);
 			this.getFontAttribute(attrib);
 			this.getBackgroundColorAttribute(attrib);
 			this.getBorderAttribute(attrib);
 		}
-		return attrib.toString();
+	}
+
+	/**
+	 * セルスタイルのアトリビュートを識別するキーを取得します。
+	 * @return セルスタイルと右下のスタイルのインデックス、数値セルかどうかから作成したキー。スタイルが無い場合null。
+	 */
+	public Long getStyleKey() {
+		if (this.style == null) {
+			return null;
+		}
+		long key = ((long) this.style.getIndex()) << 33;
+		if (this.getCellType() == CellType.NUMERIC) {
+			// 標準の配置の場合、数値セルは右寄せになる。
+			key |= 1L << 32;
+		}
+		if (this.bottomRightStyle == null) {
+			key |= 0xffffffffL;
+		} else {
+			key |= this.bottomRightStyle.getIndex();
+		}
+		return Long.valueOf(key);
 	}
 
 	/**
@@ -234,37 +299,86 @@ public class CellInfo {
 
 	/**
 	 * ボーダースタイルのアトリビュートを作成します。
-	 * @param attrib アトリビュートを追加する文字列バッファ。
+	 * @param attrib アトリビュートを追加する属性リスト。
 	 * @param prop top,bottom,left,rightのいずれかを指定。
 	 * @param style BorderStyle。
 	 */
-	private void getBorderStyleAttribute(final StringBuilder attrib, final String prop, final BorderStyle style) {
+	private void getBorderStyleAttribute(final FoAttributes attrib, final String prop, final BorderStyle style) {
 		if (style != BorderStyle.NONE) {
-			attrib.append(" border-" + prop + "-style=\"" + this.getBorderStyle(style) +"\"");
-			attrib.append(" border-" + prop + "-width=\"" + this.getBorderWidth(style) +"\"");
+			attrib.add("border-" + prop + "-style", this.getBorderStyle(style));
+			attrib.add("border-" + prop + "-width", this.getBorderWidth(style));
 		}
 	}
 
 	/**
 	 * ボーダーの色アトリビュートを作成します。
-	 * @param attrib アトリビュートを追加する文字列バッファ。
+	 * @param attrib アトリビュートを追加する属性リスト。
 	 * @param prop top,bottom,left,rightのいずれかを指定。
 	 * @param color ボーダーの色。
 	 */
-	private void getBorderColorAttribute(final StringBuilder attrib, final String prop, final XSSFColor color) {
+	private void getBorderColorAttribute(final FoAttributes attrib, final String prop, final XSSFColor color) {
 		if (color != null) {
 			String cc = color.getARGBHex();
 			if (cc != null) {
-				attrib.append(" " + prop + "=\"#" + cc.substring(2) +"\"");
+				attrib.add(prop, "#" + cc.substring(2));
 			}
 		}
 	}
 
+	/**
+	 * xlsのボーダーの色アトリビュートを作成します。
+	 * @param attrib アトリビュートを追加する属性リスト。
+	 * @param prop top,bottom,left,rightのいずれかを指定。
+	 * @param index ボーダーの色のパレットのインデックス。
+	 */
+	private void getBorderColorAttribute(final FoAttributes attrib, final String prop, final short index) {
+		byte[] rgb = getPaletteColor(this.workbook, index);
+		if (rgb != null) {
+			attrib.add(prop, "#" + toHex(rgb));
+		}
+	}
+
+	/**
+	 * xlsのパレットの色を取得します。
+	 * @param wb ワークブック。
+	 * @param index パレットのインデックス。
+	 * @return RGB値。自動の色の場合null。
+	 */
+	private static byte[] getPaletteColor(final Workbook wb, final short index) {
+		if (index == HSSFColor.HSSFColorPredefined.AUTOMATIC.getIndex() || !(wb instanceof HSSFWorkbook)) {
+			return null;
+		}
+		HSSFPalette palette = ((HSSFWorkbook) wb).getCustomPalette();
+		return toRGB(palette.getColor(index));
+	}
+
+	/**
+	 * xlsの色のRGB値を取得します。
+	 * @param color 色。
+	 * @return RGB値。自動の色の場合null。
+	 */
+	private static byte[] toRGB(final HSSFColor color) {
+		if (color == null || color.getIndex() == HSSFColor.HSSFColorPredefined.AUTOMATIC.getIndex()) {
+			return null;
+		}
+		short[] t = color.getTriplet();
+		return new byte[] {(byte) t[0], (byte) t[1], (byte) t[2]};
+	}
+
+	/**
+	 * RGB値を16進数の文字列に変換します。
+	 * @param rgb RGB値。
+	 * @return 16進数の文字列(rrggbb)。
+	 */
+	private static String toHex(final byte[] rgb) {
+		return String.format("%02x", rgb[0]) + String.format("%02x", rgb[1]) + String.format("%02x", rgb[2]);
+	}
+
 	/**
 	 * Border関連のアトリビュートを作成します。
-	 * @param attrib アトリビュートを追加する文字列バッファ。
+	 * @param attrib アトリビュートを追加する属性リスト。
 	 */
-	private void getBorderAttribute(final StringBuilder attrib) {
+	private void getBorderAttribute(final FoAttributes attrib) {
 		this.getBorderStyleAttribute(attrib, "top", this.style.getBorderTop());
 		this.getBorderStyleAttribute(attrib, "left", this.style.getBorderLeft());
 		if (this.bottomRightStyle == null) {
@@ -274,6 +388,23 @@ public class CellInfo {
 			this.getBorderStyleAttribute(attrib, "bottom", this.bottomRightStyle.getBorderBottom());
 			this.getBorderStyleAttribute(attrib, "right", this.bottomRightStyle.getBorderRight());
 		}
+		if (!(this.style instanceof XSSFCellStyle)) {
+			// xlsは罫線が無くても色のインデックスを持つため、罫線のある辺のみ出力する。
+			CellStyle br = (this.bottomRightStyle == null ? this.style : this.bottomRightStyle);
+			if (this.style.getBorderTop() != BorderStyle.NONE) {
+				this.getBorderColorAttribute(attrib, "border-top-color", this.style.getTopBorderColor());
+			}
+			if (this.style.getBorderLeft() != BorderStyle.NONE) {
+				this.getBorderColorAttribute(attrib, "border-left-color", this.style.getLeftBorderColor());
+			}
+			if (br.getBorderBottom() != BorderStyle.NONE) {
+				this.getBorderColorAttribute(attrib, "border-bottom-color", br.getBottomBorderColor());
+			}
+			if (br.getBorderRight() != BorderStyle.NONE) {
+				this.getBorderColorAttribute(attrib, "border-right-color", br.getRightBorderColor());
+			}
+			return;
+		}
 		XSSFCellStyle style = (XSSFCellStyle) this.style;
 		this.getBorderColorAttribute(attrib, "border-top-color", style.getTopBorderXSSFColor());
 		this.getBorderColorAttribute(attrib, "border-left-color", style.getLeftBorderXSSFColor());
@@ -286,81 +417,153 @@ public class CellInfo {
 
 	/**
 	 * 背景色のアトリビュートを取得します。
-	 * @param attrib 追加する文字列バッファ。
+	 * @param attrib 追加する属性リスト。
 	 */
-	public void getBackgroundColorAttribute(final StringBuilder attrib) {
-		XSSFColor c = (XSSFColor) this.style.getFillForegroundColorColor();
+	public void getBackgroundColorAttribute(final FoAttributes attrib) {
 		int cidx = this.style.getFillForegroundColor();
 		logger.debug("cidx=" + cidx);
-		if (c != null) {
-			byte[] rgb = c.getRGBWithTint();
-			if (rgb != null) {
-				String hexcolor = String.format("%02x", rgb[0]) + String.format("%02x", rgb[1]) + String.format("%02x", rgb[2]);
-				if (hexcolor != null) {
-					logger.debug("row,col=(" + this.row + "," + this.column + "), hexcolor=" + hexcolor + ", cidx=" + cidx);
-					attrib.append(" background-color=\"#" + hexcolor + "\" ");
-				}
-			}
+		byte[] rgb = getFillColor(this.style);
+		if (rgb != null) {
+			String hexcolor = toHex(rgb);
+			logger.debug("row,col=(" + this.row + "," + this.column + "), hexcolor=" + hexcolor + ", cidx=" + cidx);
+			attrib.add("background-color", "#" + hexcolor);
 		}
 	}
 
 	/**
 	 * フォント関連情報を取得します。
-	 * @param attrib 追加する文字列バッファ。
+	 * @param attrib 追加する属性リスト。
 	 */
-	public void getFontAttribute(final StringBuilder attrib) {
+	public void getFontAttribute(final FoAttributes attrib) {
 		int fidx = this.style.getFontIndex();
 		if (fidx > 0) {
 			Font f = this.workbook.getFontAt(fidx);
 			if (f != null) {
-				attrib.append(" font-family=\"" + f.getFontName() + "\"");
-				attrib.append(" font-size=\"" + f.getFontHeightInPoints() + "pt\"");
-				XSSFFont xf = (XSSFFont) f;
-				XSSFColor color = xf.getXSSFColor();
-				if (color != null) {
-					String hexcolor = color.getARGBHex();
-					attrib.append(" color=\"#" + hexcolor.substring(2) + "\"");
+				attrib.add("font-family", f.getFontName());
+				attrib.add("font-size", f.getFontHeightInPoints() + "pt");
+				String hexcolor = this.getFontColor(f);
+				if (hexcolor != null) {
+					attrib.add("color", "#" + hexcolor);
 					if (f.getBold()) {
-						attrib.append(" font-weight=\"bold\"");
+						attrib.add("font-weight", "bold");
 					}
 					if (f.getItalic()) {
-						attrib.append(" font-style=\"italic\"");
+						attrib.add("font-style", "italic");
 					}
 					byte u = f.getUnderline();
 					if (u == 1) {
-						attrib.append(" text-decoration=\"underline\"");
+						attrib.add("text-decoration", "underline");
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * フォントの色を取得します。
+	 * <pre>
+	 * xlsの自動の色(COLOR_NORMAL)は、xlsxの標準のフォントの色と同じ黒とします。
+	 * </pre>
+	 * @param f フォント。
+	 * @return 16進数の色(rrggbb)。色が無い場合null。
+	 */
+	private String getFontColor(final Font f) {
+		if (f instanceof XSSFFont) {
+			XSSFColor color = ((XSSFFont) f).getXSSFColor();
+			if (color == null) {
+				return null;
+			}
+			return color.getARGBHex().substring(2);
+		}
+		if (f.getColor() == Font.COLOR_NORMAL || !(this.workbook instanceof HSSFWorkbook)) {
+			return "000000";
+		}
+		byte[] rgb = toRGB(((HSSFFont) f).getHSSFColor((HSSFWorkbook) this.workbook));
+		if (rgb == null) {
+			return "000000";
+		}
+		return toHex(rgb);
+	}
+
 	/**
 	 * 配置情報の属性を追加します。
-	 * @param attrib 追加する文字列バッファ。
+	 * @param attrib 追加する属性リスト。
 	 */
-	public void getAlignmentAttribute(final StringBuilder attrib) {
+	public void getAlignmentAttribute(final FoAttributes attrib) {
 		if (this.style.getVerticalAlignment() == VerticalAlignment.TOP) {
-			attrib.append(" display-align=\"before\"");
+			attrib.add("display-align", "before");
 		}
 		if (this.style.getVerticalAlignment() == VerticalAlignment.CENTER) {
-			attrib.append(" display-align=\"center\"");
+			attrib.add("display-align", "center");
 		}
 		if (this.style.getVerticalAlignment() == VerticalAlignment.BOTTOM) {
-			attrib.append(" display-align=\"after\"");
+			attrib.add("display-align", "after");
 		}
 		if (this.style.getAlignment() == HorizontalAlignment.LEFT) {
-			attrib.append(" text-align=\"left\"");
+			attrib.add("text-align", "left");
 		} else 	if (this.style.getAlignment() == HorizontalAlignment.CENTER) {
-			attrib.append(" text-align=\"center\"");
+			attrib.add("text-align", "center");
 		} else if (this.style.getAlignment() == HorizontalAlignment.RIGHT) {
-			attrib.append(" text-align=\"right\"");
+			attrib.add("text-align", "right");
 		} else {
 			CellType type = this.getCellType();
 			if (type == CellType.NUMERIC) {
-				attrib.append(" text-align=\"right\"");
+				attrib.add("text-align", "right");
+			}
+		}
+	}
+
+	/**
+	 * 値、罫線、塗りつぶしのいずれかを持つセルかどうかを判定します。
+	 * @param cell セル。
+	 * @return 値、罫線、塗りつぶしのいずれかを持つ場合true。
+	 */
+	public static boolean isUsedCell(final Cell cell) {
+		if (cell.getCellType() == CellType.STRING) {
+			if (cell.getStringCellValue().length() > 0) {
+				return true;
 			}
+		} else if (cell.getCellType() != CellType.BLANK) {
+			return true;
+		}
+		return hasVisibleStyle(cell.getCellStyle());
+	}
+
+	/**
+	 * 罫線または塗りつぶしを持つスタイルかどうかを判定します。
+	 * <pre>
+	 * 塗りつぶしのパターンが無くても、background-colorを出力する前景色を持つ場合は塗りつぶし有りとします。
+	 * </pre>
+	 * @param style セルスタイル。
+	 * @return 罫線または塗りつぶしを持つ場合true。
+	 */
+	public static boolean hasVisibleStyle(final CellStyle style) {
+		if (style == null) {
+			return false;
+		}
+		if (style.getBorderTop() != BorderStyle.NONE
+			|| style.getBorderBottom() != BorderStyle.NONE
+			|| style.getBorderLeft() != BorderStyle.NONE
+			|| style.getBorderRight() != BorderStyle.NONE
+			|| style.getFillPattern() != FillPatternType.NO_FILL) {
+			return true;
+		}
+		return getFillColor(style) != null;
+	}
+
+	/**
+	 * 塗りつぶしの前景色を取得します。
+	 * @param style セルスタイル。
+	 * @return RGB値。前景色が無い場合null。
+	 */
+	private static byte[] getFillColor(final CellStyle style) {
+		Color c = style.getFillForegroundColorColor();
+		if (c instanceof XSSFColor) {
+			return ((XSSFColor) c).getRGBWithTint();
+		} else if (c instanceof HSSFColor) {
+			return toRGB((HSSFColor) c);
 		}
+		return null;
 	}
 
 	/**
@@ -369,6 +572,7 @@ public class CellInfo {
 	 */
 	public void setStyle(final CellStyle style) {
 		this.style = style;
+		this.visibleStyle = null;
 	}
 
 	/**
@@ -413,4 +617,30 @@ public class CellInfo {
 	public void setCellType(final CellType cellType) {
 		this.cellType = cellType;
 	}
+
+	/**
+	 * イメージフィールドの画像タグを取得します。
+	 * @return イメージフィールドの画像タグ。イメージフィールドでない場合null。
+	 */
+	public String getImageFieldTag() {
+		return imageFieldTag;
+	}
+
+	/**
+	 * イメージフィールドのパラメータを取得します。
+	 * @return イメージフィールドのパラメータ。
+	 */
+	public ImageFieldParameter getImageFieldParameter() {
+		return imageFieldParameter;
+	}
+
+	/**
+	 * イメージフィールドを設定します。
+	 * @param tag 画像タグ。
+	 * @param param パラメータ。
+	 */
+	public void setImageField(final String tag, final ImageFieldParameter param) {
+		this.imageFieldTag = tag;
+		this.imageFieldParameter = param;
+	}
 }
@@ -1,36 +1,68 @@
 package jp.dataforms.exeltoxslfo;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.math.BigDecimal;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.poi.hssf.usermodel.HSSFClientAnchor;
+import org.apache.poi.poifs.filesystem.FileMagic;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.ClientAnchor;
 import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Drawing;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Picture;
+import org.apache.poi.ss.usermodel.PictureData;
 import org.apache.poi.ss.usermodel.PrintSetup;
 import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Shape;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.util.Units;
-import org.apache.poi.xssf.usermodel.XSSFClientAnchor;
-import org.apache.poi.xssf.usermodel.XSSFDrawing;
-import org.apache.poi.xssf.usermodel.XSSFPicture;
-import org.apache.poi.xssf.usermodel.XSSFShape;
+import org.apache.poi.xssf.usermodel.XSSFPictureData;
+
+import org.xml.sax.ContentHandler;
 
-import com.google.gson.Gson;
 
 /**
  * Excelシートから、それらしいXSL-FOファイルを作成します。
@@ -62,15 +94,261 @@ public class ExcelToXSLFO {
 	private String xslFoFile = null;
 
 	/**
-	 * イメージフィールドに対応した画像タグ。
+	 * 出力ファイルをgzip形式で圧縮するフラグ。
+	 * <pre>
+	 * falseの場合も、出力ファイルの拡張子が.gzであれば圧縮します。
+	 * </pre>
+	 */
+	private boolean gzipOutput = false;
+
+	/**
+	 * gzip形式で圧縮する場合の圧縮レベル(0-9)。
+	 */
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * gzip形式で圧縮する場合の圧縮後のデータのバッファサイズ。
+	 */
+	private static final int GZIP_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * XSL-FOの代わりにXSL-FOを生成するXSLTスタイルシートを出力するフラグ。
+	 * <pre>
+	 * falseの場合も、出力ファイルの拡張子が.xslまたは.xslt(圧縮する場合は.xsl.gz等)であればXSLTを出力します。
+	 * </pre>
+	 */
+	private boolean xsltOutput = false;
+
+	/**
+	 * イメージフィールドに対応した画像情報。
+	 */
+	private List<ImageInfo> vImageList = null;
+
+	/**
+	 * セルスタイル毎の属性リスト。
+	 * <pre>
+	 * 同じスタイルのセルで同じ属性リストを共有します。
+	 * 行を並列に出力する場合も共有するため、ConcurrentHashMapを使用します。
+	 * </pre>
+	 */
+	private Map<Long, FoAttributes> styleAttributeMap = null;
+
+	/**
+	 * Json毎のイメージフィールドのパラメータ。
+	 * <pre>
+	 * 同じJsonのイメージフィールドで解析結果を共有します。
+	 * </pre>
+	 */
+	private Map<String, ImageFieldParameter> imageFieldParameterMap = null;
+
+	/**
+	 * テーブルの分割モード。
+	 * <pre>
+	 * 巨大なテーブルを1つのfo:tableとして出力すると、FOP等のXSL-FOプロセッサは
+	 * テーブル全体をメモリ上に保持してからレイアウトを行うことになります。
+	 * テーブルを分割して出力することで、処理済みのページを解放できるようにします。
+	 * </pre>
+	 */
+	public enum SplitMode {
+		/**
+		 * 分割しない。
+		 */
+		NONE,
+		/**
+		 * fo:table-bodyを分割する。
+		 */
+		TABLE_BODY,
+		/**
+		 * fo:page-sequenceを分割する。
+		 */
+		PAGE_SEQUENCE
+	}
+
+	/**
+	 * テーブルの分割モード。
+	 */
+	private SplitMode splitMode = SplitMode.NONE;
+
+	/**
+	 * テーブルを分割する行数。
+	 * <pre>
+	 * 0以下の場合、シートの改ページ位置で分割します。
+	 * </pre>
+	 */
+	private int splitRows = 0;
+
+	/**
+	 * 出力範囲を絞り込むフラグ。
+	 * <pre>
+	 * trueの場合、印刷範囲が定義されていればその範囲を、定義されていなければ
+	 * 値、罫線、塗りつぶしのいずれも持たない末尾の行と列を除いた範囲を出力します。
+	 * </pre>
+	 */
+	private boolean trimRange = true;
+
+	/**
+	 * 空セルをまとめるフラグ。
+	 * <pre>
+	 * trueの場合、隣接する値も罫線も塗りつぶしも無いセルを1つの列結合セルとして出力します。
+	 * </pre>
+	 */
+	private boolean collapseEmptyCells = true;
+
+	/**
+	 * 寸法の小数点以下の桁数。
+	 */
+	private int decimalDigits = FixedDecimal.DEFAULT_DIGITS;
+
+	/**
+	 * 画像の解像度(dpi)。
+	 * <pre>
+	 * 0より大きい場合、シート上の画像を配置サイズでこの解像度になるように縮小します。
+	 * </pre>
+	 */
+	private int imageDpi = 0;
+
+	/**
+	 * 画像の縮小処理。
+	 */
+	private ImageResampler imageResampler = null;
+
+	/**
+	 * テーブルの行を並列に出力するフラグ。
+	 * <pre>
+	 * trueの場合、セル数がparallelThreshold以上のテーブルボディの行を複数のスレッドで出力します。
+	 * 出力先がFragmentXslFoWriterを実装していない場合は逐次出力します。
+	 * </pre>
+	 */
+	private boolean parallelRendering = false;
+
+	/**
+	 * テーブル情報を並列に作成するフラグ。
+	 * <pre>
+	 * trueの場合、セル数がparallelThreshold以上のシートのセル情報を複数のスレッドで読み込みます。
+	 * </pre>
+	 */
+	private boolean parallelBuild = false;
+
+	/**
+	 * 並列処理を行うセル数の下限。
+	 */
+	private int parallelThreshold = 20000;
+
+	/**
+	 * 同じ内容の行の出力結果を再利用するフラグ。
+	 * <pre>
+	 * trueの場合、出力先がFragmentXslFoWriterを実装していれば、行の高さ、セルのスタイル、結合、値が
+	 * 直前に出力した行と同じ行は、出力済みの断片を書き込みます。
+	 * </pre>
+	 */
+	private boolean reuseRows = true;
+
+	/**
+	 * 出力結果を保持する行の種類の上限。
+	 */
+	private static final int ROW_MEMO_SIZE = 64;
+
+	/**
+	 * 出力結果の再利用を続けるかどうかを判定するまでの行数。
+	 * <pre>
+	 * この行数を調べた時点で再利用できた行が1割未満の場合、以降の行ではシグネチャを作成しません。
+	 * </pre>
+	 */
+	private static final int ROW_MEMO_TRIAL_ROWS = 256;
+
+	/**
+	 * 出力結果の再利用の対象として調べた行数。
+	 */
+	private AtomicLong memoRows = new AtomicLong();
+
+	/**
+	 * 出力結果を再利用した行数。
+	 */
+	private AtomicLong memoHits = new AtomicLong();
+
+	/**
+	 * 並列出力時に1スレッドで出力する行数。
+	 */
+	private static final int PARALLEL_CHUNK_ROWS = 256;
+
+	/**
+	 * 変換のタイムアウト(ミリ秒)。
+	 */
+	private long timeout = 0;
+
+	/**
+	 * 変換の期限(System.nanoTime()の値)。期限が無い場合0。
+	 */
+	private long deadline = 0;
+
+	/**
+	 * 非同期変換の結果。
+	 * <pre>
+	 * この結果がキャンセルされた場合、変換を中断します。
+	 * </pre>
+	 */
+	private volatile CompletableFuture<String> future = null;
+
+	/**
+	 * 進捗のリスナ。
+	 */
+	private ProgressListener progressListener = null;
+
+	/**
+	 * 処理段階毎の処理済みの行数。
+	 */
+	private AtomicInteger processedRows = new AtomicInteger();
+
+	/**
+	 * 受付制御。
+	 */
+	private AdmissionController admissionController = null;
+
+	/**
+	 * 受付制御で確保した推定メモリ使用量(バイト)。
+	 */
+	private long reservedMemory = 0;
+
+	/**
+	 * xlsxのXMLパートの展開後の1バイト当たりの推定メモリ使用量(バイト)。
+	 */
+	private static final long XML_MEMORY_FACTOR = 8;
+
+	/**
+	 * xlsファイルの1バイト当たりの推定メモリ使用量(バイト)。
+	 */
+	private static final long BINARY_MEMORY_FACTOR = 4;
+
+	/**
+	 * テーブル情報の1セル当たりの推定メモリ使用量(バイト)。
+	 */
+	private static final long CELL_MEMORY = 160;
+
+	/**
+	 * 文字列で出力する場合の1セル当たりの推定メモリ使用量(バイト)。
+	 */
+	private static final long TEXT_OUTPUT_MEMORY = 400;
+
+	/**
+	 * セル結合1つ当たりの推定メモリ使用量(バイト)。
+	 */
+	private static final long MERGED_REGION_MEMORY = 128;
+
+	/**
+	 * 画像データの1バイト当たりの推定メモリ使用量(バイト)。
+	 * <pre>
+	 * 画像データとそのBase64文字列を同時に保持する分です。
+	 * </pre>
 	 */
-	private StringBuilder vImageList = null;
+	private static final long IMAGE_MEMORY_FACTOR = 4;
 
 	/**
 	 * コンストラクタ。
 	 */
 	public ExcelToXSLFO() {
-		this.vImageList = new StringBuilder();
+		this.vImageList = new ArrayList<ImageInfo>();
+		this.styleAttributeMap = new ConcurrentHashMap<Long, FoAttributes>();
+		this.imageFieldParameterMap = new ConcurrentHashMap<String, ImageFieldParameter>();
 	}
 
 	/**
@@ -122,132 +400,638 @@ public class ExcelToXSLFO {
 	}
 
 	/**
-	 * 引数指定の例外。
-	 *
+	 * 出力ファイルをgzip形式で圧縮するかどうかを取得します。
+	 * @return 圧縮する場合true。
 	 */
-	private class ArgException extends Exception {
-
+	public boolean isGzipOutput() {
+		return gzipOutput || (this.xslFoFile != null && this.xslFoFile.toLowerCase().endsWith(".gz"));
 	}
 
 	/**
-	 * コマンドラインを解析します。
-	 * @param args コマンドライン引数。
-	 * @throws Exception 例外。
+	 * 出力ファイルをgzip形式で圧縮するかどうかを設定します。
+	 * @param gzipOutput 圧縮する場合true。
 	 */
-	private void parseAargs(final String[] args) throws Exception {
-		if (args.length >= 2) {
-			for (int i = 0; i < args.length; i++) {
-				if ("-s".equals(args[i])) {
-					int sheetIndex = Integer.parseInt(args[i + 1]);
-					this.setSheetIndex(sheetIndex);
-					i++;
-				} else {
-					if (this.getExcelFile() == null) {
-						this.setExcelFile(args[i]);
-					} else if (this.getXslFoFile() == null) {
-						this.setXslFoFile(args[i]);
-					} else {
-						throw new ArgException();
-					}
-				}
-			}
-			if (this.getExcelFile() == null || this.getXslFoFile() == null) {
-				throw new ArgException();
-			}
-		} else {
-			throw new ArgException();
-		}
+	public void setGzipOutput(final boolean gzipOutput) {
+		this.gzipOutput = gzipOutput;
 	}
 
 	/**
-	 * 指定されたWorkbookを取得します。
-	 * @return Workbook。
-	 * @throws Exception 例外。
+	 * XSLTスタイルシートを出力するかどうかを取得します。
+	 * @return XSLTスタイルシートを出力する場合true。
 	 */
-	private Workbook getWorkbook() throws Exception {
-		Workbook ret = null;
-		FileInputStream is = new FileInputStream(this.getExcelFile());
-		try {
-			ret = WorkbookFactory.create(is);
-		} finally {
-			is.close();
+	public boolean isXsltOutput() {
+		if (this.xsltOutput) {
+			return true;
 		}
-		return ret;
+		if (this.xslFoFile == null) {
+			return false;
+		}
+		String name = this.xslFoFile.toLowerCase();
+		if (name.endsWith(".gz")) {
+			name = name.substring(0, name.length() - 3);
+		}
+		return name.endsWith(".xsl") || name.endsWith(".xslt");
 	}
 
+	/**
+	 * XSLTスタイルシートを出力するかどうかを設定します。
+	 * <pre>
+	 * XSLTスタイルシートはセルスタイル毎に1つのxsl:attribute-setを定義し、各セルからはそれを参照します。
+	 * XSLTプロセッサで処理するとXSL-FOを出力した場合と同じ内容のXSL-FOになります。
+	 * XSLTスタイルシートは逐次出力します。
+	 * </pre>
+	 * @param xsltOutput XSLTスタイルシートを出力する場合true。
+	 */
+	public void setXsltOutput(final boolean xsltOutput) {
+		this.xsltOutput = xsltOutput;
+	}
 
+	/**
+	 * gzip形式で圧縮する場合の圧縮レベルを取得します。
+	 * @return 圧縮レベル(0-9、-1の場合はデフォルト)。
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
 
 	/**
-	 * Excelのテーブル構造を取得します。
-	 *
+	 * gzip形式で圧縮する場合の圧縮レベルを設定します。
+	 * <pre>
+	 * 1が最も速く、9が最も圧縮率が高くなります。
+	 * </pre>
+	 * @param compressionLevel 圧縮レベル(0-9、-1の場合はデフォルト)。
 	 */
-	private class TableInfo {
-		/**
-		 * 行の幅リスト。
-		 */
-		private List<Double> rowHeightList = null;
-		/**
-		 * カラムの幅リスト。
-		 */
-		private List<Double> columnWidthList = null;
+	public void setCompressionLevel(final int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("compression level: " + compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+	}
 
-		/**
-		 * セル情報。
-		 */
-		private CellInfo [][] cellInfo = null;
+	/**
+	 * テーブルの分割モードを取得します。
+	 * @return テーブルの分割モード。
+	 */
+	public SplitMode getSplitMode() {
+		return splitMode;
+	}
 
-		/**
-		 * 画像情報。
-		 */
-		private List<ImageInfo> imageList = new ArrayList<ImageInfo>();
+	/**
+	 * テーブルの分割モードを設定します。
+	 * @param splitMode テーブルの分割モード。
+	 */
+	public void setSplitMode(final SplitMode splitMode) {
+		this.splitMode = splitMode;
+	}
 
-		/**
-		 * 指定されたワークブックのテーブル構造情報を作成します。
-		 * @param wb ワークブック。
-		 * @throws Exception 例外。
-		 */
-		public TableInfo(final Workbook wb) throws Exception {
-			Sheet sh = wb.getSheetAt(getSheetIndex());
-			FormulaEvaluator fe = wb.getCreationHelper().createFormulaEvaluator();
-			int rows = this.getRows(sh);
-			int cols = this.getColums(sh) + 1;
-			this.cellInfo = new CellInfo[rows][cols];
-			for (int r = 0; r < rows; r++) {
-				for (int c = 0; c < cols; c++) {
-					this.cellInfo[r][c] = new CellInfo(wb, r, c);
-					Cell cell = this.getCell(sh, r, c);
-					if (cell != null) {
-						this.cellInfo[r][c].setStyle(cell.getCellStyle());
-						this.cellInfo[r][c].setValue(ExcelToXSLFO.this.getCellValue(cell, fe));
-						if (cell.getCellType() == CellType.FORMULA) {
-							CellValue cv = fe.evaluate(cell);
-							this.cellInfo[r][c].setCellType(cv.getCellType());
-						} else {
-							this.cellInfo[r][c].setCellType(cell.getCellType());
-						}
-					}
-				}
-			}
-			this.getSpanInfo(wb);
-			this.rowHeightList = this.getHeightList(wb, rows);
-			this.columnWidthList = this.getWidthList(wb, cols);
-			XSSFDrawing drawing = (XSSFDrawing) sh.createDrawingPatriarch();
-			List<XSSFShape> shapeList = drawing.getShapes();
-			for (XSSFShape shape: shapeList) {
-				if (shape instanceof XSSFPicture) {
-					XSSFPicture pic = (XSSFPicture) shape;
-					XSSFClientAnchor  anc = (XSSFClientAnchor) pic.getAnchor();
-					double top = this.getTop(anc.getRow1()) + anc.getDy1() / Units.EMU_PER_POINT;
-					double left = this.getLeft(anc.getCol1()) + anc.getDx1() / Units.EMU_PER_POINT;
-					double bottom = this.getTop(anc.getRow2()) + anc.getDy2() / Units.EMU_PER_POINT;
-					double right = this.getLeft(anc.getCol2()) + anc.getDx2() / Units.EMU_PER_POINT;
-					double height = bottom - top + 1;
-					double width = right - left + 1;
-					this.imageList.add(new ImageInfo(top, left, height, width, pic.getPictureData()));
-				}
-			}
-		}
+	/**
+	 * テーブルを分割する行数を取得します。
+	 * @return テーブルを分割する行数。
+	 */
+	public int getSplitRows() {
+		return splitRows;
+	}
 
+	/**
+	 * テーブルを分割する行数を設定します。
+	 * <pre>
+	 * 0以下の場合、シートの改ページ位置で分割します。
+	 * </pre>
+	 * @param splitRows テーブルを分割する行数。
+	 */
+	public void setSplitRows(final int splitRows) {
+		this.splitRows = splitRows;
+	}
+
+	/**
+	 * 出力範囲を絞り込むかどうかを取得します。
+	 * @return 出力範囲を絞り込む場合true。
+	 */
+	public boolean isTrimRange() {
+		return trimRange;
+	}
+
+	/**
+	 * 出力範囲を絞り込むかどうかを設定します。
+	 * @param trimRange 出力範囲を絞り込む場合true。
+	 */
+	public void setTrimRange(final boolean trimRange) {
+		this.trimRange = trimRange;
+	}
+
+	/**
+	 * 空セルをまとめるかどうかを取得します。
+	 * @return 空セルをまとめる場合true。
+	 */
+	public boolean isCollapseEmptyCells() {
+		return collapseEmptyCells;
+	}
+
+	/**
+	 * 空セルをまとめるかどうかを設定します。
+	 * @param collapseEmptyCells 空セルをまとめる場合true。
+	 */
+	public void setCollapseEmptyCells(final boolean collapseEmptyCells) {
+		this.collapseEmptyCells = collapseEmptyCells;
+	}
+
+	/**
+	 * 寸法の小数点以下の桁数を取得します。
+	 * @return 寸法の小数点以下の桁数。
+	 */
+	public int getDecimalDigits() {
+		return decimalDigits;
+	}
+
+	/**
+	 * テーブルの行を並列に出力するかどうかを取得します。
+	 * @return 並列に出力する場合true。
+	 */
+	public boolean isParallelRendering() {
+		return parallelRendering;
+	}
+
+	/**
+	 * テーブルの行を並列に出力するかどうかを設定します。
+	 * <pre>
+	 * 並列に出力した場合も、出力内容は逐次出力した場合と同じになります。
+	 * </pre>
+	 * @param parallelRendering 並列に出力する場合true。
+	 */
+	public void setParallelRendering(final boolean parallelRendering) {
+		this.parallelRendering = parallelRendering;
+	}
+
+	/**
+	 * テーブル情報を並列に作成するかどうかを取得します。
+	 * @return 並列に作成する場合true。
+	 */
+	public boolean isParallelBuild() {
+		return parallelBuild;
+	}
+
+	/**
+	 * テーブル情報を並列に作成するかどうかを設定します。
+	 * <pre>
+	 * 並列に作成する場合、数式セルは事前に1度だけ計算し、その計算結果を書式化します。
+	 * </pre>
+	 * @param parallelBuild 並列に作成する場合true。
+	 */
+	public void setParallelBuild(final boolean parallelBuild) {
+		this.parallelBuild = parallelBuild;
+	}
+
+	/**
+	 * 同じ内容の行の出力結果を再利用するかどうかを取得します。
+	 * @return 再利用する場合true。
+	 */
+	public boolean isReuseRows() {
+		return reuseRows;
+	}
+
+	/**
+	 * 同じ内容の行の出力結果を再利用するかどうかを設定します。
+	 * @param reuseRows 再利用する場合true。
+	 */
+	public void setReuseRows(final boolean reuseRows) {
+		this.reuseRows = reuseRows;
+	}
+
+	/**
+	 * 行を並列に出力するテーブルボディのセル数の下限を取得します。
+	 * @return セル数の下限。
+	 */
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * 行を並列に出力するテーブルボディのセル数の下限を設定します。
+	 * <pre>
+	 * 小さなテーブルではスレッドの切り替えの負荷の方が大きくなるため、この値未満のテーブルボディは逐次出力します。
+	 * テーブル情報を並列に作成する場合のシートのセル数の下限も兼ねます。
+	 * </pre>
+	 * @param parallelThreshold セル数の下限。
+	 */
+	public void setParallelThreshold(final int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * 画像の解像度(dpi)を取得します。
+	 * @return 画像の解像度(dpi)。
+	 */
+	public int getImageDpi() {
+		return imageDpi;
+	}
+
+	/**
+	 * 画像の解像度(dpi)を設定します。
+	 * <pre>
+	 * 0より大きい値を設定すると、配置サイズでこの解像度より細かい画像を縮小して出力します。
+	 * </pre>
+	 * @param imageDpi 画像の解像度(dpi)。0の場合は縮小しません。
+	 */
+	public void setImageDpi(final int imageDpi) {
+		this.imageDpi = imageDpi;
+	}
+
+	/**
+	 * 変換のタイムアウトを取得します。
+	 * @return タイムアウト(ミリ秒)。
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * 変換のタイムアウトを設定します。
+	 * <pre>
+	 * 変換開始からこの時間を過ぎると、次の行の処理の前にTimeoutExceptionで変換を中断します。
+	 * </pre>
+	 * @param timeout タイムアウト(ミリ秒)。0の場合はタイムアウトしません。
+	 */
+	public void setTimeout(final long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * 進捗のリスナを取得します。
+	 * @return 進捗のリスナ。
+	 */
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	/**
+	 * 進捗のリスナを設定します。
+	 * @param progressListener 進捗のリスナ。
+	 */
+	public void setProgressListener(final ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * 受付制御を取得します。
+	 * @return 受付制御。
+	 */
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	/**
+	 * 受付制御を設定します。
+	 * <pre>
+	 * 設定した場合、変換前に推定メモリ使用量を受付制御に登録し、予算に空きができるまで変換の開始を待ちます。
+	 * </pre>
+	 * @param admissionController 受付制御。
+	 */
+	public void setAdmissionController(final AdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+
+	/**
+	 * 寸法の小数点以下の桁数を設定します。
+	 * <pre>
+	 * 行の高さや列幅、画像の位置等の寸法はこの桁数で丸め、末尾の0を除いて出力します。
+	 * </pre>
+	 * @param decimalDigits 寸法の小数点以下の桁数(0～9)。
+	 */
+	public void setDecimalDigits(final int decimalDigits) {
+		if (decimalDigits < 0 || decimalDigits > FixedDecimal.MAX_DIGITS) {
+			throw new IllegalArgumentException("decimalDigits=" + decimalDigits);
+		}
+		this.decimalDigits = decimalDigits;
+	}
+
+	/**
+	 * 引数指定の例外。
+	 *
+	 */
+	private class ArgException extends Exception {
+
+	}
+
+	/**
+	 * コマンドラインを解析します。
+	 * @param args コマンドライン引数。
+	 * @throws Exception 例外。
+	 */
+	void parseAargs(final String[] args) throws Exception {
+		if (args.length >= 2) {
+			for (int i = 0; i < args.length; i++) {
+				if ("-s".equals(args[i])) {
+					int sheetIndex = Integer.parseInt(args[i + 1]);
+					this.setSheetIndex(sheetIndex);
+					i++;
+				} else if ("-split".equals(args[i])) {
+					if ("body".equals(args[i + 1])) {
+						this.setSplitMode(SplitMode.TABLE_BODY);
+					} else if ("page".equals(args[i + 1])) {
+						this.setSplitMode(SplitMode.PAGE_SEQUENCE);
+					} else {
+						throw new ArgException();
+					}
+					i++;
+				} else if ("-notrim".equals(args[i])) {
+					this.setTrimRange(false);
+				} else if ("-nocollapse".equals(args[i])) {
+					this.setCollapseEmptyCells(false);
+				} else if ("-xslt".equals(args[i])) {
+					this.setXsltOutput(true);
+				} else if ("-gzip".equals(args[i])) {
+					this.setGzipOutput(true);
+				} else if ("-level".equals(args[i])) {
+					this.setCompressionLevel(Integer.parseInt(args[i + 1]));
+					i++;
+				} else if ("-parallel".equals(args[i])) {
+					this.setParallelBuild(true);
+					this.setParallelRendering(true);
+				} else if ("-dpi".equals(args[i])) {
+					this.setImageDpi(Integer.parseInt(args[i + 1]));
+					i++;
+				} else if ("-digits".equals(args[i])) {
+					this.setDecimalDigits(Integer.parseInt(args[i + 1]));
+					i++;
+				} else if ("-rows".equals(args[i])) {
+					int splitRows = Integer.parseInt(args[i + 1]);
+					this.setSplitRows(splitRows);
+					i++;
+				} else {
+					if (this.getExcelFile() == null) {
+						this.setExcelFile(args[i]);
+					} else if (this.getXslFoFile() == null) {
+						this.setXslFoFile(args[i]);
+					} else {
+						throw new ArgException();
+					}
+				}
+			}
+			if (this.getExcelFile() == null || this.getXslFoFile() == null) {
+				throw new ArgException();
+			}
+		} else {
+			throw new ArgException();
+		}
+	}
+
+	/**
+	 * 指定されたWorkbookを取得します。
+	 * <pre>
+	 * ファイルを読み込み専用で開くため、ファイル全体をメモリに読み込まずに必要なエントリのみを読み込みます。
+	 * テンプレートのファイルに書き戻すこともありません。
+	 * 画像は出力時に読み込むため、Workbookは変換が終わるまで閉じないでください。
+	 * </pre>
+	 * @return Workbook。
+	 * @throws Exception 例外。
+	 */
+	private Workbook getWorkbook() throws Exception {
+		return WorkbookFactory.create(new File(this.getExcelFile()), null, true);
+	}
+
+
+
+	/**
+	 * シート上の画像を取得します。
+	 * <pre>
+	 * xlsxのXSSFDrawing、xlsのHSSFPatriarchのどちらもDrawingとして扱います。
+	 * </pre>
+	 * @param sh シート。
+	 * @return 画像のリスト。
+	 */
+	private static List<Picture> getPictures(final Sheet sh) {
+		List<Picture> ret = new ArrayList<Picture>();
+		Drawing<?> drawing = sh.getDrawingPatriarch();
+		if (drawing != null) {
+			for (Shape shape: drawing) {
+				if (shape instanceof Picture) {
+					ret.add((Picture) shape);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Excelのテーブル構造を取得します。
+	 *
+	 */
+	private class TableInfo {
+		/**
+		 * シート。
+		 */
+		private Sheet sheet = null;
+
+		/**
+		 * テーブルの先頭行に対応するシートの行インデックス。
+		 */
+		private int firstRow = 0;
+
+		/**
+		 * テーブルの先頭カラムに対応するシートのカラムインデックス。
+		 */
+		private int firstColumn = 0;
+
+		/**
+		 * 行の幅リスト。
+		 */
+		private List<Double> rowHeightList = null;
+		/**
+		 * カラムの幅リスト。
+		 */
+		private List<Double> columnWidthList = null;
+
+		/**
+		 * セル情報。
+		 */
+		private CellInfo [][] cellInfo = null;
+
+		/**
+		 * 画像情報。
+		 */
+		private List<ImageInfo> imageList = new ArrayList<ImageInfo>();
+
+		/**
+		 * セル結合範囲のインデックス。
+		 */
+		private MergedRegionIndex mergedRegionIndex = null;
+
+		/**
+		 * 指定されたワークブックのテーブル構造情報を作成します。
+		 * @param wb ワークブック。
+		 * @throws Exception 例外。
+		 */
+		public TableInfo(final Workbook wb) throws Exception {
+			Sheet sh = wb.getSheetAt(getSheetIndex());
+			this.sheet = sh;
+			CellRangeAddress range = this.getRange(wb, sh);
+			logger.debug("range=" + range.formatAsString());
+			this.firstRow = range.getFirstRow();
+			this.firstColumn = range.getFirstColumn();
+			int rows = range.getLastRow() - range.getFirstRow() + 1;
+			int cols = range.getLastColumn() - range.getFirstColumn() + 1;
+			this.cellInfo = new CellInfo[rows][cols];
+			if (parallelBuild && (long) rows * cols >= parallelThreshold) {
+				this.readCellsParallel(wb, rows);
+			} else {
+				FormulaEvaluator fe = wb.getCreationHelper().createFormulaEvaluator();
+				ValueInterner interner = new ValueInterner(wb);
+				this.readCells(wb, 0, rows, new DataFormatter(), fe, interner);
+				interner.logStatistics();
+			}
+			this.getSpanInfo(wb);
+			this.rowHeightList = this.getHeightList(wb, rows);
+			this.columnWidthList = this.getWidthList(wb, cols);
+			for (Picture pic: getPictures(sh)) {
+				ClientAnchor anc = pic.getClientAnchor();
+				int row1 = anc.getRow1() - this.firstRow;
+				int col1 = anc.getCol1() - this.firstColumn;
+				if (row1 < 0 || col1 < 0 || row1 >= rows || col1 >= cols) {
+					// 出力範囲外の画像。
+					continue;
+				}
+				double top = this.getTop(row1) + this.getAnchorDy(anc, anc.getRow1(), anc.getDy1());
+				double left = this.getLeft(col1) + this.getAnchorDx(anc, anc.getCol1(), anc.getDx1());
+				double bottom = this.getTop(anc.getRow2() - this.firstRow) + this.getAnchorDy(anc, anc.getRow2(), anc.getDy2());
+				double right = this.getLeft(anc.getCol2() - this.firstColumn) + this.getAnchorDx(anc, anc.getCol2(), anc.getDx2());
+				double height = bottom - top + 1;
+				double width = right - left + 1;
+				this.imageList.add(new ImageInfo(top, left, height, width, pic.getPictureData()));
+			}
+		}
+
+		/**
+		 * 画像のアンカーのX方向のオフセットを取得します。
+		 * <pre>
+		 * xlsxのオフセットはEMU単位、xlsのオフセットはカラム幅の1/1024単位です。
+		 * </pre>
+		 * @param anc アンカー。
+		 * @param col シートのカラムインデックス。
+		 * @param dx オフセット。
+		 * @return オフセット(pt)。
+		 */
+		private double getAnchorDx(final ClientAnchor anc, final int col, final int dx) {
+			if (anc instanceof HSSFClientAnchor) {
+				return dx / 1024.0 * this.getColumnWidth(this.sheet, col);
+			}
+			return dx / Units.EMU_PER_POINT;
+		}
+
+		/**
+		 * 画像のアンカーのY方向のオフセットを取得します。
+		 * <pre>
+		 * xlsxのオフセットはEMU単位、xlsのオフセットは行の高さの1/256単位です。
+		 * </pre>
+		 * @param anc アンカー。
+		 * @param row シートの行インデックス。
+		 * @param dy オフセット。
+		 * @return オフセット(pt)。
+		 */
+		private double getAnchorDy(final ClientAnchor anc, final int row, final int dy) {
+			if (anc instanceof HSSFClientAnchor) {
+				return dy / 256.0 * this.getRowHeight(this.sheet, row);
+			}
+			return dy / Units.EMU_PER_POINT;
+		}
+
+
+		/**
+		 * 指定範囲の行のセル情報を読み込みます。
+		 * @param wb ワークブック。
+		 * @param startRow 開始行インデックス。
+		 * @param endRow 終了行インデックス(この行は含まない)。
+		 * @param fmt セルの値の書式化処理。
+		 * @param fe 数式評価ツール。nullの場合、数式セルはキャッシュされた計算結果を使用します。
+		 * @param interner 値の重複を除く処理。
+		 * @throws Exception 例外。
+		 */
+		private void readCells(final Workbook wb, final int startRow, final int endRow, final DataFormatter fmt, final FormulaEvaluator fe, final ValueInterner interner) throws Exception {
+			int cols = this.cellInfo[0].length;
+			for (int r = startRow; r < endRow; r++) {
+				for (int c = 0; c < cols; c++) {
+					this.cellInfo[r][c] = new CellInfo(wb, r, c);
+					Cell cell = this.getCell(r, c);
+					if (cell != null) {
+						this.cellInfo[r][c].setStyle(cell.getCellStyle());
+						String value = ExcelToXSLFO.this.getCellValue(cell, fmt, fe, interner);
+						this.cellInfo[r][c].setValue(value);
+						String[] field = ImageFieldParameter.find(value);
+						if (field != null) {
+							this.cellInfo[r][c].setImageField(field[0], ExcelToXSLFO.this.getImageFieldParameter(field[1]));
+						}
+						if (cell.getCellType() == CellType.FORMULA) {
+							if (fe == null) {
+								this.cellInfo[r][c].setCellType(cell.getCachedFormulaResultType());
+							} else {
+								CellValue cv = fe.evaluate(cell);
+								this.cellInfo[r][c].setCellType(cv.getCellType());
+							}
+						} else {
+							this.cellInfo[r][c].setCellType(cell.getCellType());
+						}
+					}
+				}
+				ExcelToXSLFO.this.rowProcessed(ProgressListener.Phase.READ, this.cellInfo.length);
+			}
+		}
+
+		/**
+		 * セル情報を複数のスレッドで読み込みます。
+		 * <pre>
+		 * FormulaEvaluatorはスレッドセーフではないため、先に範囲内の数式セルをすべて計算し、
+		 * 計算結果をセルにキャッシュしておきます。
+		 * その後、行を帯状に分割し、ForkJoinPoolでそれぞれの帯を読み込みます。
+		 * DataFormatterは帯毎に作成し、数式セルはキャッシュされた計算結果を書式化します。
+		 * ValueInternerは共有文字列を読み込んでからすべての帯で共有するため、同じ文字列は帯をまたいで1つのインスタンスになります。
+		 * </pre>
+		 * @param wb ワークブック。
+		 * @param rows 行数。
+		 * @throws Exception 例外。
+		 */
+		private void readCellsParallel(final Workbook wb, final int rows) throws Exception {
+			FormulaEvaluator fe = wb.getCreationHelper().createFormulaEvaluator();
+			int cols = this.cellInfo[0].length;
+			for (int r = 0; r < rows; r++) {
+				ExcelToXSLFO.this.checkAborted();
+				Row row = this.getRow(r);
+				if (row == null) {
+					continue;
+				}
+				for (int c = 0; c < cols; c++) {
+					Cell cell = row.getCell(this.firstColumn + c);
+					if (cell != null && cell.getCellType() == CellType.FORMULA) {
+						fe.evaluateFormulaCell(cell);
+					}
+				}
+			}
+			ValueInterner interner = new ValueInterner(wb, true);
+			ForkJoinPool pool = ForkJoinPool.commonPool();
+			int band = Math.max(16, rows / (pool.getParallelism() * 4));
+			List<RecursiveAction> taskList = new ArrayList<RecursiveAction>();
+			for (int r = 0; r < rows; r += band) {
+				final int startRow = r;
+				final int endRow = Math.min(r + band, rows);
+				taskList.add(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						DataFormatter fmt = new DataFormatter();
+						fmt.setUseCachedValuesForFormulaCells(true);
+						try {
+							readCells(wb, startRow, endRow, fmt, null, interner);
+						} catch (Exception e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				});
+			}
+			for (RecursiveAction task: taskList) {
+				pool.execute(task);
+			}
+			for (RecursiveAction task: taskList) {
+				joinTask(task);
+			}
+			interner.logStatistics();
+		}
 
 		/**
 		 * 画像リストを取得します。
@@ -259,46 +1043,174 @@ public class ExcelToXSLFO {
 
 		/**
 		 * 指定した行の上端座標(pt)を取得します。
+		 * <pre>
+		 * テーブルの範囲外の行は、シートの行の高さで計算します。
+		 * </pre>
 		 * @param row 行インデックス。
 		 * @return 上端座標(pt)。
 		 */
 		private double getTop(final int row) {
 			double ret = 0;
 			for (int i = 0; i < row; i++) {
-				Double h = this.rowHeightList.get(i);
-				ret += h;
+				if (i < this.rowHeightList.size()) {
+					ret += this.rowHeightList.get(i);
+				} else {
+					ret += this.getRowHeight(this.sheet, i + this.firstRow);
+				}
 			}
 			return ret;
 		}
 
 		/**
 		 * 指定したセルの左端座標(pt)を取得します。
+		 * <pre>
+		 * テーブルの範囲外のカラムは、シートのカラム幅で計算します。
+		 * </pre>
 		 * @param cell セルインデックス。
 		 * @return セルの左端座標(pt)。
 		 */
 		private double getLeft(final int cell) {
 			double ret = 0;
 			for (int i = 0; i < cell; i++) {
-				Double h = this.columnWidthList.get(i);
-				ret += h;
+				if (i < this.columnWidthList.size()) {
+					ret += this.columnWidthList.get(i);
+				} else {
+					ret += this.getColumnWidth(this.sheet, i + this.firstColumn);
+				}
 			}
 			return ret;
 		}
 
 		/**
 		 * 指定されたセルを取得します。
-		 * @param sh シート。
-		 * @param r 行。
-		 * @param c 列。
+		 * @param r テーブルの行インデックス。
+		 * @param c テーブルのカラムインデックス。
 		 * @return セル。
 		 */
-		private Cell getCell(final Sheet sh, final int r, final int c) {
+		public Cell getCell(final int r, final int c) {
 			Cell ret = null;
-			Row row = sh.getRow(r);
+			Row row = this.getRow(r);
 			if (row != null) {
-				ret = row.getCell(c);
+				ret = row.getCell(c + this.firstColumn);
+			}
+			return ret;
+		}
+
+		/**
+		 * 指定された行を取得します。
+		 * @param r テーブルの行インデックス。
+		 * @return 行。
+		 */
+		public Row getRow(final int r) {
+			return this.sheet.getRow(r + this.firstRow);
+		}
+
+		/**
+		 * テーブルの先頭行に対応するシートの行インデックスを取得します。
+		 * @return シートの行インデックス。
+		 */
+		public int getFirstRow() {
+			return this.firstRow;
+		}
+
+		/**
+		 * テーブルの先頭カラムに対応するシートのカラムインデックスを取得します。
+		 * @return シートのカラムインデックス。
+		 */
+		public int getFirstColumn() {
+			return this.firstColumn;
+		}
+
+		/**
+		 * 出力するシートの範囲を取得します。
+		 * @param wb ワークブック。
+		 * @param sh シート。
+		 * @return 出力範囲。
+		 */
+		private CellRangeAddress getRange(final Workbook wb, final Sheet sh) {
+			if (!isTrimRange()) {
+				return new CellRangeAddress(0, Math.max(this.getRows(sh) - 1, 0), 0, this.getColums(sh));
+			}
+			CellRangeAddress used = this.getUsedRange(sh);
+			CellRangeAddress area = this.getPrintArea(wb);
+			if (area == null) {
+				return used;
+			}
+			// 行全体または列全体の指定は、使用範囲に合わせる。
+			if (area.getFirstRow() < 0) {
+				area.setFirstRow(used.getFirstRow());
+				area.setLastRow(used.getLastRow());
+			}
+			if (area.getFirstColumn() < 0) {
+				area.setFirstColumn(used.getFirstColumn());
+				area.setLastColumn(used.getLastColumn());
+			}
+			return area;
+		}
+
+		/**
+		 * シートに定義された印刷範囲を取得します。
+		 * <pre>
+		 * 複数の印刷範囲が定義されている場合、それらすべてを含む範囲を返します。
+		 * </pre>
+		 * @param wb ワークブック。
+		 * @return 印刷範囲。定義されていない場合null。
+		 */
+		private CellRangeAddress getPrintArea(final Workbook wb) {
+			String printArea = wb.getPrintArea(getSheetIndex());
+			if (printArea == null) {
+				return null;
+			}
+			logger.debug("printArea=" + printArea);
+			CellRangeAddress ret = null;
+			for (String area: printArea.split(",")) {
+				CellRangeAddress rgn = CellRangeAddress.valueOf(area.substring(area.lastIndexOf('!') + 1));
+				if (ret == null) {
+					ret = rgn;
+				} else {
+					ret.setFirstRow(Math.min(ret.getFirstRow(), rgn.getFirstRow()));
+					ret.setLastRow(Math.max(ret.getLastRow(), rgn.getLastRow()));
+					ret.setFirstColumn(Math.min(ret.getFirstColumn(), rgn.getFirstColumn()));
+					ret.setLastColumn(Math.max(ret.getLastColumn(), rgn.getLastColumn()));
+				}
+			}
+			return ret;
+		}
+
+		/**
+		 * シートの使用範囲を取得します。
+		 * <pre>
+		 * 値、罫線、塗りつぶしのいずれも持たない末尾の行とカラムを除いた範囲を返します。
+		 * 使用範囲内のセルから始まるセル結合は、その結合範囲全体を含めます。
+		 * シート上の画像は、その配置範囲全体を含めます。
+		 * </pre>
+		 * @param sh シート。
+		 * @return 使用範囲。
+		 */
+		private CellRangeAddress getUsedRange(final Sheet sh) {
+			int lastRow = 0;
+			int lastColumn = 0;
+			for (Row row: sh) {
+				for (Cell cell: row) {
+					if (CellInfo.isUsedCell(cell)) {
+						lastRow = Math.max(lastRow, cell.getRowIndex());
+						lastColumn = Math.max(lastColumn, cell.getColumnIndex());
+					}
+				}
 			}
-			return ret;
+			for (CellRangeAddress rgn: sh.getMergedRegions()) {
+				if (rgn.getFirstRow() <= lastRow && rgn.getFirstColumn() <= lastColumn) {
+					lastRow = Math.max(lastRow, rgn.getLastRow());
+					lastColumn = Math.max(lastColumn, rgn.getLastColumn());
+				}
+			}
+			for (Picture pic: getPictures(sh)) {
+				ClientAnchor anc = pic.getClientAnchor();
+				// 終端のオフセットが0の場合、画像は終端の行(カラム)にかからない。
+				lastRow = Math.max(lastRow, anc.getDy2() > 0 ? anc.getRow2() : anc.getRow2() - 1);
+				lastColumn = Math.max(lastColumn, anc.getDx2() > 0 ? anc.getCol2() : anc.getCol2() - 1);
+			}
+			return new CellRangeAddress(0, lastRow, 0, lastColumn);
 		}
 
 		/**
@@ -307,31 +1219,30 @@ public class ExcelToXSLFO {
 		 */
 		private void getSpanInfo(final Workbook wb) {
 			Sheet sh = wb.getSheetAt(getSheetIndex());
-			int n = sh.getNumMergedRegions();
-			for (int i = 0; i < n; i++) {
-				CellRangeAddress rgn = sh.getMergedRegion(i);
+			int rows = this.cellInfo.length;
+			int cols = rows > 0 ? this.cellInfo[0].length : 0;
+			this.mergedRegionIndex = new MergedRegionIndex(sh.getMergedRegions(), this.firstRow, this.firstColumn, rows, cols);
+			for (CellRangeAddress rgn: this.mergedRegionIndex.getRegionList()) {
 				int r0 = rgn.getFirstRow();
 				int c0 = rgn.getFirstColumn();
-				int rowSpan = rgn.getLastRow() - rgn.getFirstRow() + 1;
-				int colSpan = rgn.getLastColumn() - rgn.getFirstColumn() + 1;
-				for (int r = r0; r <= rgn.getLastRow(); r++) {
-					for (int c = c0; c <= rgn.getLastColumn(); c++) {
-						this.getCellInfo(r, c).setHidden(true);
-					}
-				}
-				this.getCellInfo(r0, c0).setRowSpan(rowSpan);
-				this.getCellInfo(r0, c0).setColumnSpan(colSpan);
-				this.getCellInfo(r0, c0).setHidden(false);
-				Row row = sh.getRow(rgn.getLastRow());
-				if (row != null) {
-					Cell cell = row.getCell(rgn.getLastColumn());
-					if (cell != null) {
-						this.getCellInfo(r0, c0).setBottomRightStyle(cell.getCellStyle());
-					}
+				CellInfo ci = this.getCellInfo(r0, c0);
+				ci.setRowSpan(rgn.getLastRow() - r0 + 1);
+				ci.setColumnSpan(rgn.getLastColumn() - c0 + 1);
+				Cell cell = this.getCell(rgn.getLastRow(), rgn.getLastColumn());
+				if (cell != null) {
+					ci.setBottomRightStyle(cell.getCellStyle());
 				}
 			}
 		}
 
+		/**
+		 * セル結合範囲のインデックスを取得します。
+		 * @return セル結合範囲のインデックス。
+		 */
+		public MergedRegionIndex getMergedRegionIndex() {
+			return mergedRegionIndex;
+		}
+
 		/**
 		 * セル情報を取得します。
 		 * @param row 行。
@@ -380,18 +1291,26 @@ public class ExcelToXSLFO {
 			Sheet sh = wb.getSheetAt(getSheetIndex());
 			List<Double> ret = new ArrayList<Double>();
 			for (int i = 0; i < rows; i++) {
-				Row r = sh.getRow(i);
-				if (r != null) {
-					double h = r.getHeightInPoints();
-					ret.add(h);
-				} else {
-					double h = sh.getDefaultRowHeightInPoints();
-					ret.add(h);
-				}
+				ret.add(this.getRowHeight(sh, i + this.firstRow));
 			}
 			return ret;
 		}
 
+		/**
+		 * シートの行の高さを取得します。
+		 * @param sh シート。
+		 * @param row シートの行インデックス。
+		 * @return 行の高さ(pt)。
+		 */
+		private double getRowHeight(final Sheet sh, final int row) {
+			Row r = sh.getRow(row);
+			if (r != null) {
+				return r.getHeightInPoints();
+			} else {
+				return sh.getDefaultRowHeightInPoints();
+			}
+		}
+
 		/**
 		 * Excelのテーブルカラムの幅の配列を取得します。
 		 * <pre>
@@ -402,17 +1321,26 @@ public class ExcelToXSLFO {
 		 * @return テーブルカラムの幅(単位ポイント)の配列を取得します。
 		 */
 		private List<Double> getWidthList(final Workbook wb, final int cols) {
-			Font f = wb.getFontAt(0);
 			Sheet sh = wb.getSheetAt(getSheetIndex());
 			List<Double> ret = new ArrayList<Double>();
 			for (int i = 0; i < cols; i++) {
-				// セル幅の計算はかなり適当
-				double w = sh.getColumnWidth(i) / 256.0 * (f.getFontHeightInPoints() * 0.56);
-				ret.add(w);
+				ret.add(this.getColumnWidth(sh, i + this.firstColumn));
 			}
 			return ret;
 		}
 
+		/**
+		 * シートのカラム幅を取得します。
+		 * @param sh シート。
+		 * @param col シートのカラムインデックス。
+		 * @return カラム幅(pt)。
+		 */
+		private double getColumnWidth(final Sheet sh, final int col) {
+			Font f = sh.getWorkbook().getFontAt(0);
+			// セル幅の計算はかなり適当
+			return sh.getColumnWidth(col) / 256.0 * (f.getFontHeightInPoints() * 0.56);
+		}
+
 
 		/**
 		 * 行の高さリストを取得します。
@@ -462,12 +1390,11 @@ public class ExcelToXSLFO {
 		/**
 		 * 指定された行のアトリビュートを取得します。
 		 * @param r 行インデックス。
-		 * @return アトリビュート文字列。
+		 * @param attrib アトリビュートを追加する属性リスト。
 		 */
-		public String getRowAttribute(final int r) {
+		public void getRowAttribute(final int r, final FoAttributes attrib) {
 			double h = this.getRowHeightList().get(r);
-			String attrib = "height=\"" + h + "pt\"";
-			return attrib;
+			attrib.add("height", h, "pt");
 		}
 	}
 
@@ -483,442 +1410,1139 @@ public class ExcelToXSLFO {
 	}
 
 	/**
-	 * XMLのルート開始タグ。
-	 */
-	private static final String XML_ROOT_BEGIN =
-			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-			"<fo:root xmlns:fo=\"http://www.w3.org/1999/XSL/Format\" xml:lang=\"ja\">\n";
-	/**
-	 * XMLのメート終了タグ。
+	 * ルート要素。
+	 */
+	private static final String ROOT = "fo:root";
+
+	/**
+	 * ページレイアウトの定義要素。
+	 */
+	private static final String LAYOUT_MASTER_SET = "fo:layout-master-set";
+
+	/**
+	 * ページマスタ要素。
+	 */
+	private static final String SIMPLE_PAGE_MASTER = "fo:simple-page-master";
+
+	/**
+	 * 本文領域要素。
+	 */
+	private static final String REGION_BODY = "fo:region-body";
+
+	/**
+	 * ページシーケンス要素。
+	 */
+	private static final String PAGE_SEQUENCE = "fo:page-sequence";
+
+	/**
+	 * フロー要素。
+	 */
+	private static final String FLOW = "fo:flow";
+
+	/**
+	 * ブロック要素。
+	 */
+	private static final String BLOCK = "fo:block";
+
+	/**
+	 * 位置指定ブロック要素。
+	 */
+	private static final String BLOCK_CONTAINER = "fo:block-container";
+
+	/**
+	 * 画像要素。
+	 */
+	private static final String EXTERNAL_GRAPHIC = "fo:external-graphic";
+
+	/**
+	 * テーブル要素。
+	 */
+	private static final String TABLE = "fo:table";
+
+	/**
+	 * カラム幅設定要素。
+	 */
+	private static final String TABLE_COLUMN = "fo:table-column";
+
+	/**
+	 * テーブルボディ要素。
+	 */
+	private static final String TABLE_BODY = "fo:table-body";
+
+	/**
+	 * テーブル行要素。
+	 */
+	private static final String TABLE_ROW = "fo:table-row";
+
+	/**
+	 * セル要素。
+	 */
+	private static final String TABLE_CELL = "fo:table-cell";
+
+	/**
+	 * 属性無し。
+	 */
+	private static final FoAttributes NO_ATTRIBUTES = new FoAttributes();
+
+	/**
+	 * セル内容ブロックの属性。
+	 */
+	private static final FoAttributes TABLE_CELL_BLOCK_ATTRIBUTES = new FoAttributes().setStyle(new FoAttributes().add("margin-left", "1mm"));
+
+
+	/**
+	 * セルの値を取得します。
+	 * <pre>
+	 * 同じ値は1つのインスタンスを共有します。
+	 * </pre>
+	 * @param cell セル。
+	 * @param fmt セルの値の書式化処理。
+	 * @param fe 数式評価ツール。
+	 * @param interner 値の重複を除く処理。
+	 * @return 値。
+	 */
+	private String getCellValue(final Cell cell, final DataFormatter fmt, final FormulaEvaluator fe, final ValueInterner interner) {
+		String value = "";
+		if (cell.getCellType() == CellType.BLANK) {
+			value = "";
+		} else if (cell.getCellType() == CellType.STRING) {
+			return interner.getStringCellValue(cell);
+		} else if (cell.getCellType() == CellType.FORMULA) {
+			value = fmt.formatCellValue(cell, fe);
+		} else {
+			value = fmt.formatCellValue(cell);
+		}
+		return interner.intern(value);
+	}
+
+	/**
+	 * イメージフィールドのパラメータを取得します。
+	 * <pre>
+	 * 同じJsonは変換毎に1度だけ解析します。
+	 * </pre>
+	 * @param json 画像パラメータのJson。
+	 * @return パラメータ。
+	 */
+	private ImageFieldParameter getImageFieldParameter(final String json) {
+		return this.imageFieldParameterMap.computeIfAbsent(json, k -> new ImageFieldParameter(k));
+	}
+
+	/**
+	 * イメージフィールドの画像情報を取得します。
+	 * @param tinfo テーブル情報。
+	 * @param cell セル。
+	 * @param ci セル情報。
+	 * @return 画像情報。
+	 */
+	protected ImageInfo getImageFieldInfo(final TableInfo tinfo, final Cell cell, final CellInfo ci) {
+		ImageFieldParameter param = ci.getImageFieldParameter();
+		int r0 = cell.getRowIndex() - tinfo.getFirstRow();
+		int c0 = cell.getColumnIndex() - tinfo.getFirstColumn();
+		int r1 = r0 + param.getRows();
+		int c1 = c0 + param.getColumns();
+
+		double top = tinfo.getTop(r0) + param.getDy1();
+		double left = tinfo.getLeft(c0) + param.getDx1();
+		double bottom = tinfo.getTop(r1) + param.getDy2();
+		double right = tinfo.getLeft(c1) + param.getDx2();
+		double height = bottom - top + 1;
+		double width = right - left + 1;
+		return new ImageInfo(top, left, height, width, ci.getImageFieldTag(), param.getScaling());
+	}
+
+	/**
+	 * セルの値を取得します。
+	 * <pre>
+	 * セルに画像用のタグがあった場合、画像に展開します。
+	 * 画像用のタグはテーブル情報の作成時に検出済みです。
+	 * </pre>
+	 * @param tinfo テーブル情報。
+	 * @param cell セル。
+	 * @param ci セル情報。
+	 * @param imageFieldList 展開した画像を追加するリスト。
+	 * @return セルの値。
+	 */
+	protected String getCellValue(final TableInfo tinfo, final Cell cell, final CellInfo ci, final List<ImageInfo> imageFieldList) {
+		if (ci.getImageFieldTag() != null) {
+			imageFieldList.add(this.getImageFieldInfo(tinfo, cell, ci));
+			return "";
+		} else {
+			return ci.getValue();
+		}
+	}
+
+	/**
+	 * 指定された行のテーブルセルを出力します。
+	 *
+	 * @param w 出力先。
+	 * @param tinfo テーブル情報。
+	 * @param cursor 指定行に移動済みのセル結合範囲のカーソル。
+	 * @param r 行インデックス。
+	 * @param imageFieldList イメージフィールドの画像を追加するリスト。
+	 * @throws Exception 例外。
+	 */
+	private void writeTableCells(final XslFoWriter w, final TableInfo tinfo, final MergedRegionIndex.Cursor cursor, final int r, final List<ImageInfo> imageFieldList) throws Exception {
+		FoAttributes attrib = new FoAttributes(this.decimalDigits);
+		Row row = tinfo.getRow(r);
+		int c = 0;
+		while (c < tinfo.getColumns()) {
+			int covered = cursor.getCoveredLastColumn(c);
+			if (covered >= 0) {
+				// セル結合で非表示になるカラムを読み飛ばす。
+				c = covered + 1;
+				continue;
+			}
+			CellInfo ci = tinfo.getCellInfo(r, c);
+			Cell cell = null;
+			if (row != null) {
+				cell = tinfo.getCell(r, c);
+			}
+			attrib.clear();
+			if (cell != null && !(this.collapseEmptyCells && ci.isBlank())) {
+				ci.getSpanAttribute(attrib);
+				attrib.setStyle(this.getStyleAttribute(ci));
+				String value = this.getCellValue(tinfo, cell, ci, imageFieldList);
+				this.writeTableCell(w, attrib, value);
+				c++;
+			} else {
+				// 連続する空セルは1つの列結合セルにまとめる。
+				int span = 1;
+				if (this.collapseEmptyCells) {
+					while (c + span < tinfo.getColumns() && cursor.getCoveredLastColumn(c + span) < 0
+						&& tinfo.getCellInfo(r, c + span).isBlank()) {
+						span++;
+					}
+				}
+				if (span > 1) {
+					attrib.add("number-columns-spanned", span);
+				}
+				this.writeTableCell(w, attrib, "");
+				c += span;
+			}
+		}
+	}
+
+	/**
+	 * セルスタイルの属性リストを取得します。
+	 * <pre>
+	 * スタイル毎に1度だけ属性リストを作成し、同じスタイルのセルではそれを共有します。
+	 * </pre>
+	 * @param ci セル情報。
+	 * @return セルスタイルの属性リスト。スタイルが無い場合null。
+	 */
+	private FoAttributes getStyleAttribute(final CellInfo ci) {
+		Long key = ci.getStyleKey();
+		if (key == null) {
+			return null;
+		}
+		return this.styleAttributeMap.computeIfAbsent(key, k -> {
+			FoAttributes ret = new FoAttributes(this.decimalDigits);
+			ci.getStyleAttribute(ret);
+			return ret;
+		});
+	}
+
+	/**
+	 * テーブルセルを出力します。
+	 * @param w 出力先。
+	 * @param attrib セルの属性。
+	 * @param value セルの値。
+	 * @throws Exception 例外。
+	 */
+	private void writeTableCell(final XslFoWriter w, final FoAttributes attrib, final String value) throws Exception {
+		w.startElement(TABLE_CELL, attrib);
+		w.startElement(BLOCK, TABLE_CELL_BLOCK_ATTRIBUTES);
+		if (value.length() > 0) {
+			w.characters(value);
+		}
+		w.endElement(BLOCK);
+		w.endElement(TABLE_CELL);
+	}
+
+	/**
+	 * テーブルの分割位置を取得します。
+	 * <pre>
+	 * 分割行数が指定されている場合はその行数毎に、指定されていない場合はシートの改ページ位置で分割します。
+	 * 行結合の途中では分割できないため、分割位置が結合範囲にかかる場合は結合範囲の次の行にずらします。
+	 * </pre>
+	 * @param wb ワークブック。
+	 * @param tinfo テーブル情報。
+	 * @return 分割された各ブロックの開始行インデックスのリスト(先頭は常に0)。
+	 */
+	private List<Integer> getSplitRowList(final Workbook wb, final TableInfo tinfo) {
+		List<Integer> ret = new ArrayList<Integer>();
+		ret.add(0);
+		if (this.splitMode == SplitMode.NONE) {
+			return ret;
+		}
+		Sheet sh = wb.getSheetAt(getSheetIndex());
+		int rows = tinfo.getRows();
+		List<Integer> list = new ArrayList<Integer>();
+		if (this.splitRows > 0) {
+			for (int r = this.splitRows; r < rows; r += this.splitRows) {
+				list.add(r);
+			}
+		} else {
+			int[] breaks = sh.getRowBreaks();
+			Arrays.sort(breaks);
+			for (int b: breaks) {
+				// 改ページは指定行の後ろに入る。
+				list.add(b + 1 - tinfo.getFirstRow());
+			}
+		}
+		for (Integer r: list) {
+			int split = tinfo.getMergedRegionIndex().getSplittableRow(r);
+			if (split > ret.get(ret.size() - 1) && split < rows) {
+				ret.add(split);
+			}
+		}
+		logger.debug("splitRowList=" + ret);
+		return ret;
+	}
+
+	/**
+	 * テーブルを出力します。
+	 * @param w 出力先。
+	 * @param tinfo テーブル情報。
+	 * @param bodyList テーブルボディ毎の開始行インデックスのリスト。
+	 * @param endRow 出力する最終行の次の行インデックス。
+	 * @throws Exception 例外。
+	 */
+	private void writeTable(final XslFoWriter w, final TableInfo tinfo, final List<Integer> bodyList, final int endRow) throws Exception {
+		FoAttributes attrib = new FoAttributes(this.decimalDigits);
+		attrib.add("inline-progression-dimension", tinfo.getTableWidth(), "pt");
+		attrib.add("table-layout", "fixed");
+		w.startElement(TABLE, attrib);
+		for (int i = 0; i < tinfo.getColumns(); i++) {
+			attrib.clear();
+			attrib.add("column-number", i + 1);
+			attrib.add("column-width", tinfo.getColumnWidthList().get(i).doubleValue(), "pt");
+			w.startElement(TABLE_COLUMN, attrib);
+			w.endElement(TABLE_COLUMN);
+		}
+		for (int i = 0; i < bodyList.size(); i++) {
+			int startRow = bodyList.get(i);
+			int nextRow = (i + 1 < bodyList.size()) ? bodyList.get(i + 1) : endRow;
+			w.startElement(TABLE_BODY, NO_ATTRIBUTES);
+			if (this.parallelRendering && w instanceof FragmentXslFoWriter
+				&& (long) (nextRow - startRow) * tinfo.getColumns() >= this.parallelThreshold) {
+				this.writeRowsParallel((FragmentXslFoWriter) w, tinfo, startRow, nextRow);
+			} else {
+				this.writeRows(w, tinfo, startRow, nextRow, this.vImageList);
+			}
+			w.endElement(TABLE_BODY);
+		}
+		w.endElement(TABLE);
+	}
+
+	/**
+	 * テーブルの行を出力します。
+	 * @param w 出力先。
+	 * @param tinfo テーブル情報。
+	 * @param startRow 開始行インデックス。
+	 * @param endRow 終了行インデックス(この行は含まない)。
+	 * @param imageFieldList イメージフィールドの画像を追加するリスト。
+	 * @throws Exception 例外。
+	 */
+	private void writeRows(final XslFoWriter w, final TableInfo tinfo, final int startRow, final int endRow, final List<ImageInfo> imageFieldList) throws Exception {
+		FoAttributes attrib = new FoAttributes(this.decimalDigits);
+		MergedRegionIndex.Cursor cursor = tinfo.getMergedRegionIndex().cursor();
+		RowMemo memo = null;
+		StringBuilder sb = null;
+		if (this.reuseRows && w instanceof FragmentXslFoWriter) {
+			memo = new RowMemo();
+			sb = new StringBuilder();
+		}
+		long rows = 0;
+		long hits = 0;
+		for (int r = startRow; r < endRow; r++) {
+			cursor.moveTo(r);
+			String key = (memo == null ? null : this.getRowSignature(tinfo, cursor, r, sb));
+			if (key == null) {
+				this.writeRow(w, tinfo, cursor, r, imageFieldList, attrib);
+			} else {
+				rows++;
+				if (!memo.containsKey(key)) {
+					// 初出の行は出力結果を保持せずに出力し、2度目に断片に出力して保持する。
+					memo.put(key, null);
+					this.writeRow(w, tinfo, cursor, r, imageFieldList, attrib);
+				} else {
+					FragmentXslFoWriter fw = (FragmentXslFoWriter) w;
+					XslFoWriter fragment = memo.get(key);
+					if (fragment == null) {
+						fragment = fw.createFragment();
+						this.writeRow(fragment, tinfo, cursor, r, imageFieldList, attrib);
+						memo.put(key, fragment);
+					} else {
+						hits++;
+					}
+					fw.writeFragment(fragment);
+				}
+			}
+			if (memo != null && rows >= ROW_MEMO_TRIAL_ROWS && hits * 10 < rows) {
+				// 同じ内容の行が少ない場合は、シグネチャの作成を止める。
+				memo = null;
+			}
+			this.rowProcessed(ProgressListener.Phase.WRITE, tinfo.getRows());
+		}
+		this.memoRows.addAndGet(rows);
+		this.memoHits.addAndGet(hits);
+	}
+
+	/**
+	 * テーブルの行を1行出力します。
+	 * @param w 出力先。
+	 * @param tinfo テーブル情報。
+	 * @param cursor 指定行に移動済みのセル結合範囲のカーソル。
+	 * @param r 行インデックス。
+	 * @param imageFieldList イメージフィールドの画像を追加するリスト。
+	 * @param attrib 作業用の属性リスト。
+	 * @throws Exception 例外。
+	 */
+	private void writeRow(final XslFoWriter w, final TableInfo tinfo, final MergedRegionIndex.Cursor cursor, final int r, final List<ImageInfo> imageFieldList, final FoAttributes attrib) throws Exception {
+		attrib.clear();
+		tinfo.getRowAttribute(r, attrib);
+		w.startElement(TABLE_ROW, attrib);
+		this.writeTableCells(w, tinfo, cursor, r, imageFieldList);
+		w.endElement(TABLE_ROW);
+	}
+
+	/**
+	 * 行の出力結果を識別するシグネチャを取得します。
+	 * <pre>
+	 * 行の高さと、各カラムの結合による非表示範囲、セルの有無、空セルかどうか、結合数、スタイルのキー、値から作成します。
+	 * writeTableCells()の出力はこれらのみで決まるため、シグネチャが同じ行は同じ出力になります。
+	 * イメージフィールドを含む行は画像の位置が行毎に異なるため、再利用の対象外とします。
+	 * </pre>
+	 * @param tinfo テーブル情報。
+	 * @param cursor 指定行に移動済みのセル結合範囲のカーソル。
+	 * @param r 行インデックス。
+	 * @param sb 作業用のStringBuilder。
+	 * @return シグネチャ。再利用の対象外の行はnull。
+	 */
+	private String getRowSignature(final TableInfo tinfo, final MergedRegionIndex.Cursor cursor, final int r, final StringBuilder sb) {
+		sb.setLength(0);
+		sb.append(tinfo.getRowHeightList().get(r).doubleValue());
+		Row row = tinfo.getRow(r);
+		for (int c = 0; c < tinfo.getColumns(); c++) {
+			int covered = cursor.getCoveredLastColumn(c);
+			if (covered >= 0) {
+				sb.append("|x").append(covered);
+				c = covered;
+				continue;
+			}
+			CellInfo ci = tinfo.getCellInfo(r, c);
+			if (ci.getImageFieldTag() != null) {
+				return null;
+			}
+			if (row == null || tinfo.getCell(r, c) == null || (this.collapseEmptyCells && ci.isBlank())) {
+				sb.append(ci.isBlank() ? "|b" : "|e");
+			} else {
+				String value = ci.getValue();
+				Long styleKey = ci.getStyleKey();
+				sb.append("|c").append(ci.getRowSpan()).append(',').append(ci.getColumnSpan())
+					.append(',').append(styleKey == null ? -1L : styleKey.longValue()).append(',').append(value.length()).append(':').append(value);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 行の出力結果の保持。
+	 * <pre>
+	 * シグネチャ毎に出力済みの断片を保持し、最も長く使用されていないものから破棄します。
+	 * 1度だけ出現した行のシグネチャはnullに対応付けます。
+	 * </pre>
+	 */
+	private static class RowMemo extends LinkedHashMap<String, XslFoWriter> {
+		/**
+		 * シリアルバージョンUID。
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * コンストラクタ。
+		 */
+		public RowMemo() {
+			super(ROW_MEMO_SIZE * 2, 0.75f, true);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, XslFoWriter> eldest) {
+			return this.size() > ROW_MEMO_SIZE;
+		}
+	}
+
+	/**
+	 * テーブルの行を並列に出力します。
+	 * <pre>
+	 * 行をPARALLEL_CHUNK_ROWS行毎の断片に分けてForkJoinPoolで出力し、完了した断片を行の順に書き込みます。
+	 * メモリ使用量を抑えるため、同時に処理する断片はプールの並列度の2倍までとします。
+	 * </pre>
+	 * @param w 出力先。
+	 * @param tinfo テーブル情報。
+	 * @param startRow 開始行インデックス。
+	 * @param endRow 終了行インデックス(この行は含まない)。
+	 * @throws Exception 例外。
+	 */
+	private void writeRowsParallel(final FragmentXslFoWriter w, final TableInfo tinfo, final int startRow, final int endRow) throws Exception {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int window = Math.max(2, pool.getParallelism() * 2);
+		Deque<RowChunk> queue = new ArrayDeque<RowChunk>();
+		int next = startRow;
+		while (next < endRow || !queue.isEmpty()) {
+			while (next < endRow && queue.size() < window) {
+				int end = Math.min(next + PARALLEL_CHUNK_ROWS, endRow);
+				RowChunk chunk = new RowChunk(w.createFragment(), tinfo, next, end);
+				pool.execute(chunk);
+				queue.add(chunk);
+				next = end;
+			}
+			RowChunk chunk = queue.poll();
+			joinTask(chunk);
+			w.writeFragment(chunk.fragment);
+			this.vImageList.addAll(chunk.imageFieldList);
+		}
+	}
+
+	/**
+	 * ForkJoinPoolで実行したタスクの完了を待ちます。
+	 * <pre>
+	 * タスク内で発生した例外はIllegalStateExceptionで包まれているため、元の例外を取り出して送出します。
+	 * </pre>
+	 * @param task タスク。
+	 * @throws Exception タスク内で発生した例外。
+	 */
+	private static void joinTask(final ForkJoinTask<?> task) throws Exception {
+		try {
+			task.join();
+		} catch (RuntimeException e) {
+			Throwable t = e;
+			while (t instanceof IllegalStateException && t.getCause() != null) {
+				t = t.getCause();
+			}
+			if (t instanceof Exception) {
+				throw (Exception) t;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 並列出力する行の断片。
 	 */
-	private static final String XML_ROOT_END = "</fo:root>\n";
+	private class RowChunk extends RecursiveAction {
+		/**
+		 * シリアルバージョンUID。
+		 */
+		private static final long serialVersionUID = 1L;
 
+		/**
+		 * 断片の出力先。
+		 */
+		private XslFoWriter fragment = null;
 
-	/**
-	 * ページの開始タグ。
-	 */
-	private static final String PAGE_BEGIN =
-			"	<fo:page-sequence initial-page-number=\"1\" master-reference=\"PageMaster\" font-family=\"${fontName}\" font-size=\"${fontPoint}pt\">\n" +
-			"		<fo:flow flow-name=\"xsl-region-body\">\n" +
-			"			<fo:block  space-before=\"1em\" >\n";
+		/**
+		 * テーブル情報。
+		 */
+		private TableInfo tinfo = null;
 
-	/**
-	 * ページ終了タグ。
-	 */
-	private static final String PAGE_END =
-			"			</fo:block>\n" +
-			"		</fo:flow>\n" +
-			"	</fo:page-sequence>\n";
+		/**
+		 * 開始行インデックス。
+		 */
+		private int startRow = 0;
 
-	/**
-	 * テーブル開始タグ。
-	 */
-	private static final String TABLE_BEGIN =
-			"				<fo:table inline-progression-dimension=\"${width}pt\" table-layout=\"fixed\">\n";
+		/**
+		 * 終了行インデックス(この行は含まない)。
+		 */
+		private int endRow = 0;
 
-	/**
-	 * テーブル終了タグ。
-	 */
-	private static final String TABLE_END =
-			"				</fo:table>\n";
+		/**
+		 * 断片中のイメージフィールドの画像。
+		 */
+		private List<ImageInfo> imageFieldList = new ArrayList<ImageInfo>();
 
-	/**
-	 * カラム幅設定タグ。
-	 */
-	private static final String COLUMN_WIDTH =
-			"					<fo:table-column column-number=\"${cidx}\" column-width=\"${width}pt\" />\n";
+		/**
+		 * コンストラクタ。
+		 * @param fragment 断片の出力先。
+		 * @param tinfo テーブル情報。
+		 * @param startRow 開始行インデックス。
+		 * @param endRow 終了行インデックス(この行は含まない)。
+		 */
+		public RowChunk(final XslFoWriter fragment, final TableInfo tinfo, final int startRow, final int endRow) {
+			this.fragment = fragment;
+			this.tinfo = tinfo;
+			this.startRow = startRow;
+			this.endRow = endRow;
+		}
 
-	/**
-	 * テーブルボディ開始タグ。
-	 */
-	private static final String TABLE_BODY_BEGIN =
-			"					<fo:table-body>\n";
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void compute() {
+			try {
+				ExcelToXSLFO.this.writeRows(this.fragment, this.tinfo, this.startRow, this.endRow, this.imageFieldList);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
 
 	/**
-	 * テーブルボディ終了タグ。
+	 * 画像の配置を出力します。
+	 * <pre>
+	 * 上端座標がtopからbottomの範囲にある画像を、topからの相対位置で配置します。
+	 * </pre>
+	 * @param w 出力先。
+	 * @param imageList 画像リスト。
+	 * @param top 出力範囲の上端座標(pt)。
+	 * @param bottom 出力範囲の下端座標(pt)。
+	 * @throws Exception 例外。
 	 */
-	private static final String TABLE_BODY_END =
-			"					</fo:table-body>\n";
+	private void writeImages(final XslFoWriter w, final List<ImageInfo> imageList, final double top, final double bottom) throws Exception {
+		for (ImageInfo iinfo: imageList) {
+			if (iinfo.getTop() < top || bottom <= iinfo.getTop()) {
+				continue;
+			}
+			this.writeImage(w, iinfo, iinfo.getTop() - top);
+		}
+	}
 
 	/**
-	 * テーブル行開始タグ。
+	 * 画像の配置を出力します。
+	 * @param w 出力先。
+	 * @param iinfo 画像情報。
+	 * @param top 画像の上端座標(pt)。
+	 * @throws Exception 例外。
 	 */
-	private static final String TABLE_ROW_BEGIN =
-			"						<fo:table-row ${attrib}>\n";
+	private void writeImage(final XslFoWriter w, final ImageInfo iinfo, final double top) throws Exception {
+		FoAttributes attrib = new FoAttributes(this.decimalDigits);
+		attrib.add("position", "absolute");
+		attrib.add("top", top, "pt");
+		attrib.add("left", iinfo.getLeft(), "pt");
+		attrib.add("width", iinfo.getWidth(), "pt");
+		attrib.add("height", iinfo.getHeight(), "pt");
+		w.startElement(BLOCK_CONTAINER, attrib);
+		w.startElement(BLOCK, NO_ATTRIBUTES);
+		attrib.clear();
+		attrib.add("src", iinfo.getImageSrc(this.imageResampler));
+		attrib.add("width", iinfo.getWidth(), "pt");
+		attrib.add("height", iinfo.getHeight(), "pt");
+		attrib.add("content-width", iinfo.getWidth(), "pt");
+		attrib.add("content-height", iinfo.getHeight(), "pt");
+		attrib.add("border-style", "dotted");
+		if (iinfo.isImageField()) {
+			attrib.add("border-width", "0mm");
+			attrib.add("scaling", iinfo.getScaling());
+		} else {
+			attrib.add("border-width", "thin");
+		}
+		w.startElement(EXTERNAL_GRAPHIC, attrib);
+		w.endElement(EXTERNAL_GRAPHIC);
+		w.endElement(BLOCK);
+		w.endElement(BLOCK_CONTAINER);
+	}
 
 	/**
-	 * テーブル行終了タグ。
+	 * 用紙の大きさを取得します。
+	 * @param sh シート。
+	 * @return 縦置きの場合の用紙の高さと幅の配列。
 	 */
-	private static final String TABLE_ROW_END =
-			"						</fo:table-row>\n";
+	private String[] getPaperSize(final Sheet sh) {
+		logger.debug("paperSize=" + sh.getPrintSetup().getPaperSize());
+		if (sh.getPrintSetup().getPaperSize() == PrintSetup.A3_PAPERSIZE) {
+			return new String[] {"420mm", "297mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.A4_PAPERSIZE) {
+			return new String[] {"297mm", "210mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.A5_PAPERSIZE) {
+			return new String[] {"210mm", "148mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.B4_PAPERSIZE) {
+			return new String[] {"354mm", "250mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.B5_PAPERSIZE) {
+			return new String[] {"257mm", "182mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.LETTER_PAPERSIZE) {
+			return new String[] {"279.4mm", "215.9mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.TABLOID_PAPERSIZE) {
+			return new String[] {"431.8mm", "279.4mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.LEGAL_PAPERSIZE) {
+			return new String[] {"355.6mm", "215.9mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.STATEMENT_PAPERSIZE) {
+			return new String[] {"215.9mm", "139.7mm"};
+		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.EXECUTIVE_PAPERSIZE) {
+			return new String[] {"266.7mm", "184.1mm"};
+		} else {
+			return new String[] {"297mm", "210mm"};
+		}
+	}
 
 	/**
-	 * セル開始タグ。
+	 * ページマスタを出力します。
+	 * @param wb ワークブック。
+	 * @param w 出力先。
+	 * @throws Exception 例外。
 	 */
-	private static final String TABLE_CELL_BEGIN =
-			"							<fo:table-cell ${attrib}>\n";
+	private void writePageMaster(final Workbook wb, final XslFoWriter w) throws Exception {
+		Sheet sh = wb.getSheetAt(getSheetIndex());
+		String[] size = this.getPaperSize(sh);
+		FoAttributes attrib = new FoAttributes(this.decimalDigits);
+		if (sh.getPrintSetup().getLandscape()) {
+			attrib.add("page-height", size[1]);
+			attrib.add("page-width", size[0]);
+		} else {
+			attrib.add("page-height", size[0]);
+			attrib.add("page-width", size[1]);
+		}
+		attrib.add("margin-top", "0mm");
+		attrib.add("margin-left", "0mm");
+		attrib.add("margin-right", "0mm");
+		attrib.add("margin-bottom", "0mm");
+		attrib.add("master-name", "PageMaster");
+		w.startElement(LAYOUT_MASTER_SET, NO_ATTRIBUTES);
+		w.startElement(SIMPLE_PAGE_MASTER, attrib);
+		attrib.clear();
+		attrib.add("margin-top", sh.getMargin(Sheet.TopMargin) * 72, "pt");
+		attrib.add("margin-left", sh.getMargin(Sheet.LeftMargin) * 72, "pt");
+		attrib.add("margin-right", sh.getMargin(Sheet.RightMargin) * 72, "pt");
+		attrib.add("margin-bottom", sh.getMargin(Sheet.BottomMargin) * 72, "pt");
+		w.startElement(REGION_BODY, attrib);
+		w.endElement(REGION_BODY);
+		w.endElement(SIMPLE_PAGE_MASTER);
+		w.endElement(LAYOUT_MASTER_SET);
+	}
 
 	/**
-	 * セル終了タグ。
+	 * XSL-FO形式のXMLを出力します。
+	 * @param wb ワークブック。
+	 * @param tinfo テーブル情報。
+	 * @param w 出力先。
+	 * @throws Exception 例外。
 	 */
-	private static final String TABLE_CELL_END =
-			"							</fo:table-cell>\n";
+	private void writeXSLFO(final Workbook wb, final TableInfo tinfo, final XslFoWriter w) throws Exception {
+		w.startDocument();
+		FoAttributes attrib = new FoAttributes(this.decimalDigits);
+		attrib.add("xml:lang", "ja");
+		w.startElement(ROOT, attrib);
+		this.writePageMaster(wb, w);
+		List<Integer> splitList = this.getSplitRowList(wb, tinfo);
+		if (this.splitMode == SplitMode.PAGE_SEQUENCE) {
+			for (int i = 0; i < splitList.size(); i++) {
+				int startRow = splitList.get(i);
+				int endRow = (i + 1 < splitList.size()) ? splitList.get(i + 1) : tinfo.getRows();
+				List<Integer> bodyList = new ArrayList<Integer>();
+				bodyList.add(startRow);
+				this.writePageSequence(wb, tinfo, w, bodyList, endRow, i == 0);
+			}
+		} else {
+			this.writePageSequence(wb, tinfo, w, splitList, tinfo.getRows(), true);
+		}
+		w.endElement(ROOT);
+		w.endDocument();
+	}
 
 	/**
-	 * セル内容ブロックタグ。
+	 * ページシーケンスを出力します。
+	 * @param wb ワークブック。
+	 * @param tinfo テーブル情報。
+	 * @param w 出力先。
+	 * @param bodyList テーブルボディ毎の開始行インデックスのリスト。
+	 * @param endRow 出力する最終行の次の行インデックス。
+	 * @param first 最初のページシーケンスの場合true。
+	 * @throws Exception 例外。
 	 */
-	private static final String TABLE_CELL_BLOCK_BEGIN =
-			"								<fo:block margin-left=\"1mm\">";
-
+	private void writePageSequence(final Workbook wb, final TableInfo tinfo, final XslFoWriter w, final List<Integer> bodyList, final int endRow, final boolean first) throws Exception {
+		Font f = wb.getFontAt(0);
+		FoAttributes attrib = new FoAttributes(this.decimalDigits);
+		attrib.add("initial-page-number", first ? "1" : "auto");
+		attrib.add("master-reference", "PageMaster");
+		attrib.add("font-family", f.getFontName());
+		attrib.add("font-size", f.getFontHeightInPoints() + "pt");
+		w.startElement(PAGE_SEQUENCE, attrib);
+		attrib.clear();
+		attrib.add("flow-name", "xsl-region-body");
+		w.startElement(FLOW, attrib);
+		attrib.clear();
+		attrib.add("space-before", "1em");
+		w.startElement(BLOCK, attrib);
+		double pageTop = tinfo.getTop(bodyList.get(0));
+		double pageBottom = Double.MAX_VALUE;
+		if (endRow < tinfo.getRows()) {
+			pageBottom = tinfo.getTop(endRow);
+		}
+		this.vImageList.clear();
+		this.writeTable(w, tinfo, bodyList, endRow);
+		this.writeImages(w, tinfo.getImageList(), pageTop, pageBottom);
+		for (ImageInfo iinfo: this.vImageList) {
+			this.writeImage(w, iinfo, iinfo.getTop() - pageTop);
+		}
+		w.endElement(BLOCK);
+		w.endElement(FLOW);
+		w.endElement(PAGE_SEQUENCE);
+	}
 
 	/**
-	 * セル内容ブロックタグ。
+	 * ExcelファイルからXSL-FOを作成し、指定された出力先に出力します。
+	 * <pre>
+	 * 出力先はXSL-FOを逐次出力するものとして受付制御のメモリ使用量を推定します。
+	 * </pre>
+	 * @param writer 出力先。
+	 * @throws Exception 例外。
 	 */
-	private static final String TABLE_CELL_BLOCK_END =
-			"</fo:block>\n";
-
+	public void convert(final XslFoWriter writer) throws Exception {
+		this.convert(writer, false);
+	}
 
 	/**
-	 * セルの値を取得します。
-	 * @param cell セル。
-	 * @param fe 数式評価ツール。
-	 * @return 値。
+	 * ExcelファイルからXSL-FOを作成し、指定された出力先に出力します。
+	 * @param writer 出力先。
+	 * @param textOutput 出力結果をすべてメモリに保持する場合true。受付制御のメモリ使用量の推定に使用します。
+	 * @throws Exception 例外。
 	 */
-	private String getCellValue(final Cell cell, final FormulaEvaluator fe) {
-		DataFormatter fmt = new DataFormatter();
-		String value = "";
-		if (cell.getCellType() == CellType.BLANK) {
-			value = "";
-		} else if (cell.getCellType() == CellType.STRING) {
-			value = cell.getStringCellValue();
-		} else if (cell.getCellType() == CellType.FORMULA) {
-			value = fmt.formatCellValue(cell, fe);
-		} else {
-			value = fmt.formatCellValue(cell);
+	private void convert(final XslFoWriter writer, final boolean textOutput) throws Exception {
+		this.deadline = 0;
+		if (this.timeout > 0) {
+			this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+		}
+		this.styleAttributeMap.clear();
+		this.imageFieldParameterMap.clear();
+		this.imageResampler = null;
+		if (this.imageDpi > 0) {
+			this.imageResampler = new ImageResampler(this.imageDpi);
+		}
+		try {
+			Workbook wb = this.getAdmittedWorkbook(textOutput);
+			try {
+				this.processedRows.set(0);
+				TableInfo tinfo = this.getTableInfo(wb);
+				this.processedRows.set(0);
+				this.memoRows.set(0);
+				this.memoHits.set(0);
+				this.writeXSLFO(wb, tinfo, writer);
+				if (logger.isDebugEnabled() && this.memoRows.get() > 0) {
+					logger.debug("row reuse: rows=" + this.memoRows.get() + ", hits=" + this.memoHits.get()
+						+ " (" + (this.memoHits.get() * 100 / this.memoRows.get()) + "%)");
+				}
+			} finally {
+				wb.close();
+			}
+		} finally {
+			if (this.reservedMemory > 0) {
+				this.admissionController.release(this.reservedMemory);
+				this.reservedMemory = 0;
+			}
 		}
-		return value;
 	}
 
 	/**
-	 * Jsonから変換したMapからの値取得。
-	 * @param info Jsonから変換したMap。
-	 * @param key キー。
-	 * @param dv デフォルト値、
-	 * @return 値。
+	 * 受付制御の受付を待ってWorkbookを取得します。
+	 * <pre>
+	 * まずファイルから推定したWorkbookのメモリ使用量で受付を待ち、Workbookを読み込みます。
+	 * 次にシートの大きさ、セル結合の数、画像のサイズからテーブル情報と出力のメモリ使用量を推定して追加します。
+	 * 追加分をすぐに確保できない場合は、Workbookを閉じて確保済みの分を返却し、合計で受付を待ち直します。
+	 * メモリを確保したまま他の変換を待つことはないため、デッドロックしません。
+	 * </pre>
+	 * @param textOutput 出力結果をすべてメモリに保持する場合true。
+	 * @return Workbook。
+	 * @throws Exception 例外。
 	 */
-	protected BigDecimal getBigDecimalValue(final Map<String, Object> info, final String key, final BigDecimal dv) {
-		BigDecimal value = (BigDecimal) info.get(key);
-		if (value == null) {
-			value = dv;
+	private Workbook getAdmittedWorkbook(final boolean textOutput) throws Exception {
+		AdmissionController ac = this.admissionController;
+		if (ac == null) {
+			return this.getWorkbook();
 		}
-		return value;
-
+		this.admit(this.estimateWorkbookMemory());
+		Workbook wb = this.getWorkbook();
+		long total = 0;
+		try {
+			total = this.reservedMemory + this.estimateSheetMemory(wb, textOutput);
+			if (ac.tryAcquire(total - this.reservedMemory, this.excelFile)) {
+				this.reservedMemory = total;
+				return wb;
+			}
+		} catch (Exception e) {
+			wb.close();
+			throw e;
+		}
+		wb.close();
+		ac.release(this.reservedMemory);
+		this.reservedMemory = 0;
+		this.admit(total);
+		return this.getWorkbook();
 	}
 
 	/**
-	 * 画像タグを取得します。
-	 * @param tinfo テーブル情報。
-	 * @param cell セル。
-	 * @param ci セル情報。
-	 * @param tag タグ。
-	 * @param json 画像パラメータのJson、
-	 * @return 画像タグ。
-	 */
-	protected String getImageTag(final TableInfo tinfo, final Cell cell, final CellInfo ci, final String tag, final String json) {
-//		@SuppressWarnings("unchecked")
-//		Map<String, Object> info = (Map<String, Object>) JSON.decode(json, HashMap.class);
-		Gson gson = new Gson();
-		@SuppressWarnings("unchecked")
-		Map<String, Object> info = (Map<String, Object>) gson.fromJson(json, HashMap.class);
-		int r0 = cell.getRowIndex();
-		int c0 = cell.getColumnIndex();
-		BigDecimal rows = this.getBigDecimalValue(info, "rows", BigDecimal.valueOf(1));
-		BigDecimal cols = this.getBigDecimalValue(info, "columns", BigDecimal.valueOf(1));
-		int r1 = r0 + rows.intValue();
-		int c1 = c0 + cols.intValue();
-
-		BigDecimal dx1 = this.getBigDecimalValue(info, "dx1", BigDecimal.valueOf(0));
-		BigDecimal dy1 = this.getBigDecimalValue(info, "dy1", BigDecimal.valueOf(0));
-		BigDecimal dx2 = this.getBigDecimalValue(info, "dx2", BigDecimal.valueOf(0));
-		BigDecimal dy2 = this.getBigDecimalValue(info, "dy2", BigDecimal.valueOf(0));
-
-		double top = tinfo.getTop(r0) + dy1.intValue();
-		double left = tinfo.getLeft(c0) + dx1.intValue();
-		double bottom = tinfo.getTop(r1) + dy2.intValue();
-		double right = tinfo.getLeft(c1) + dx2.intValue();
-		double height = bottom - top + 1;
-		double width = right - left + 1;
-
-		StringBuilder sb = new StringBuilder();
-		String imageBlockBegin = IMAGE_BLOCK_BEGIN;
-		imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{top\\}", "" + top);
-		imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{left\\}", "" + left);
-		imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{height\\}", "" + height);
-		imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{width\\}", "" + width);
-		String aspect = (String) info.get("aspect");
-		String scaling = "non-uniform";
-		if ("image".equals(aspect)) {
-			scaling = "uniform";
-		}
-		sb.append(imageBlockBegin);
-		sb.append("					<fo:block><fo:external-graphic src=\"" + tag + "\" width=\"" + width + "pt\" height=\"" + height + "pt\" content-width=\"" + width + "pt\" content-height=\"" + height + "pt\" border-style=\"dotted\" border-width=\"0mm\" scaling=\"" + scaling + "\"/></fo:block>\n");
-		sb.append(IMAGE_BLOCK_END);
-
-		return sb.toString();
+	 * 推定メモリ使用量の受付を待ちます。
+	 * <pre>
+	 * 待っている間も変換のキャンセルと期限を確認します。
+	 * </pre>
+	 * @param bytes 推定メモリ使用量(バイト)。
+	 * @throws Exception 例外。
+	 */
+	private void admit(final long bytes) throws Exception {
+		try {
+			while (!this.admissionController.acquire(bytes, this.excelFile, 100)) {
+				this.checkAborted();
+			}
+		} catch (Exception e) {
+			this.admissionController.leave();
+			throw e;
+		}
+		this.reservedMemory = bytes;
 	}
 
 	/**
-	 * セルの値を取得します。
+	 * ファイルからWorkbookの推定メモリ使用量を取得します。
 	 * <pre>
-	 * セルに画像用のタグがあった場合、画像に展開します。
+	 * xlsxの場合は展開後のXMLパートの合計サイズ、xlsの場合はファイルサイズから推定します。
+	 * 画像は出力時に読み込むため含めません。
 	 * </pre>
-	 * @param tinfo テーブル情報。
-	 * @param cell セル。
-	 * @param ci セル情報。
-	 * @return セルの値。
+	 * @return 推定メモリ使用量(バイト)。
+	 * @throws Exception 例外。
 	 */
-	protected String getCellValue(final TableInfo tinfo, final Cell cell, final CellInfo ci) {
-		Pattern p = Pattern.compile("(\\$\\{.+?\\})(\\{.+?\\})");
-		Matcher m = p.matcher(ci.getValue());
-		if (m.find()) {
-			vImageList.append(this.getImageTag(tinfo, cell, ci, m.group(1), m.group(2)));
-			return "";
-		} else {
-			return ci.getValue();
+	private long estimateWorkbookMemory() throws Exception {
+		File file = new File(this.excelFile);
+		if (FileMagic.valueOf(file) != FileMagic.OOXML) {
+			return file.length() * BINARY_MEMORY_FACTOR;
+		}
+		long ret = 0;
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (ZipEntry e: Collections.list(zip.entries())) {
+				String name = e.getName();
+				if (name.endsWith(".xml") || name.endsWith(".rels")) {
+					long size = e.getSize();
+					if (size < 0) {
+						size = e.getCompressedSize() * 10;
+					}
+					ret += size * XML_MEMORY_FACTOR;
+				}
+			}
+		} finally {
+			zip.close();
 		}
+		return ret;
 	}
 
 	/**
-	 * 指定された行のテーブルセルのXMLを作成します。
-	 *
+	 * シートの変換に必要な推定メモリ使用量を取得します。
+	 * <pre>
+	 * シートの行数と列数からテーブル情報(文字列で出力する場合は出力結果も)、
+	 * セル結合の数、画像データのサイズから推定します。
+	 * </pre>
 	 * @param wb ワークブック。
-	 * @param tinfo テーブル情報。
-	 * @param r 行インデックス。
-	 * @return XMLの文字列。
+	 * @param textOutput 出力結果をすべてメモリに保持する場合true。
+	 * @return 推定メモリ使用量(バイト)。
 	 */
-	private String getTableCellsXml(final Workbook wb, final TableInfo tinfo, final int r) {
-		Sheet sh = wb.getSheetAt(getSheetIndex());
-		StringBuilder sb = new StringBuilder();
-		Row row = sh.getRow(r);
-		if (row != null) {
-			for (int c = 0; c < tinfo.getColumns(); c++) {
-				CellInfo ci = tinfo.getCellInfo(r, c);
-				if (ci.isHidden()) {
-					continue;
-				}
-				Cell cell = row.getCell(c);
-				if (cell != null) {
-					String cellBegin = TABLE_CELL_BEGIN.replaceAll("\\$\\{attrib\\}", ci.getCellAttribute());
-					sb.append(cellBegin);
-					String value = this.getCellValue(tinfo, cell, ci);
-					sb.append(TABLE_CELL_BLOCK_BEGIN);
-					sb.append(value);
-					sb.append(TABLE_CELL_BLOCK_END);
-					sb.append(TABLE_CELL_END);
-				} else {
-					String attrib = "";
-					String cellBegin = TABLE_CELL_BEGIN.replaceAll("\\$\\{attrib\\}", attrib);
-					sb.append(cellBegin);
-					sb.append(TABLE_CELL_BLOCK_BEGIN);
-					sb.append(TABLE_CELL_BLOCK_END);
-					sb.append(TABLE_CELL_END);
-				}
+	private long estimateSheetMemory(final Workbook wb, final boolean textOutput) {
+		Sheet sh = wb.getSheetAt(this.sheetIndex);
+		long rows = sh.getLastRowNum() + 1;
+		long cols = 0;
+		for (Row row: sh) {
+			cols = Math.max(cols, row.getLastCellNum());
+		}
+		long cells = rows * cols;
+		long ret = cells * CELL_MEMORY + sh.getNumMergedRegions() * MERGED_REGION_MEMORY;
+		long imageBytes = 0;
+		long maxImageBytes = 0;
+		for (Picture pic: getPictures(sh)) {
+			PictureData data = pic.getPictureData();
+			long size = 0;
+			if (data instanceof XSSFPictureData) {
+				size = Math.max(0, ((XSSFPictureData) data).getPackagePart().getSize());
+			} else {
+				size = data.getData().length;
 			}
+			imageBytes += size;
+			maxImageBytes = Math.max(maxImageBytes, size);
+		}
+		if (textOutput) {
+			// 文字列で出力する場合は、すべてのセルと画像が出力結果に残る。
+			ret += cells * TEXT_OUTPUT_MEMORY + imageBytes * IMAGE_MEMORY_FACTOR;
 		} else {
-			for (int c = 0; c < tinfo.getColumns(); c++) {
-				CellInfo ci = tinfo.getCellInfo(r, c);
-				if (ci.isHidden()) {
-					continue;
-				}
-				String attrib = "";
-				String cellBegin = TABLE_CELL_BEGIN.replaceAll("\\$\\{attrib\\}", attrib);
-				sb.append(cellBegin);
-				sb.append(TABLE_CELL_BLOCK_BEGIN);
-				sb.append(TABLE_CELL_BLOCK_END);
-				sb.append(TABLE_CELL_END);
-			}
+			ret += maxImageBytes * IMAGE_MEMORY_FACTOR;
 		}
-		String ret = sb.toString();
+		logger.debug("estimated memory: rows=" + rows + ", cols=" + cols + ", merged=" + sh.getNumMergedRegions()
+			+ ", images=" + imageBytes + ", memory=" + ret);
 		return ret;
 	}
 
 	/**
-	 * テーブルのXMLを作成します。
-	 * @param wb ワークブック。
-	 * @param tinfo テーブル情報。
-	 * @return XML文字列。
+	 * 変換を中断するかどうかを確認します。
+	 * @throws Exception 非同期変換がキャンセルされた場合CancellationException、期限を過ぎた場合TimeoutException。
 	 */
-	private String getTableXml(final Workbook wb, final TableInfo tinfo) {
-		StringBuilder sb = new StringBuilder();
-		String tblbegin = TABLE_BEGIN.replaceAll("\\$\\{width\\}", "" + tinfo.getTableWidth());
-		sb.append(tblbegin);
-		for (int i = 0; i < tinfo.getColumns(); i++) {
-			String colinfo = COLUMN_WIDTH.replaceAll("\\$\\{width\\}", "" + tinfo.getColumnWidthList().get(i).doubleValue());
-			colinfo = colinfo.replaceAll("\\$\\{cidx\\}", "" + (i + 1));
-			sb.append(colinfo);
-		}
-		sb.append(TABLE_BODY_BEGIN);
-		for (int r = 0; r < tinfo.getRows(); r++) {
-			String attrib = tinfo.getRowAttribute(r);
-			String cells = this.getTableCellsXml(wb, tinfo, r);
-			String tableRowBegin = TABLE_ROW_BEGIN.replaceAll("\\$\\{attrib\\}", attrib);
-			sb.append(tableRowBegin);
-			sb.append(cells);
-			sb.append(TABLE_ROW_END);
-		}
-		sb.append(TABLE_BODY_END);
-		sb.append(TABLE_END);
-		return sb.toString();
+	private void checkAborted() throws Exception {
+		CompletableFuture<String> f = this.future;
+		if (f != null && f.isCancelled()) {
+			throw new CancellationException("conversion cancelled: " + this.excelFile);
+		}
+		if (this.deadline != 0 && System.nanoTime() - this.deadline > 0) {
+			throw new TimeoutException("conversion timed out (" + this.timeout + "ms): " + this.excelFile);
+		}
 	}
 
 	/**
-	 * 画像位置指定ブロック開始。
+	 * 1行の処理が終わったことを記録します。
+	 * <pre>
+	 * 変換を中断するかどうかを確認し、進捗をリスナに通知します。
+	 * </pre>
+	 * @param phase 処理段階。
+	 * @param totalRows 全体の行数。
+	 * @throws Exception 例外。
 	 */
-	private static final String IMAGE_BLOCK_BEGIN =
-			"				<fo:block-container position=\"absolute\" top=\"${top}pt\" left=\"${left}pt\" width=\"${width}pt\" height=\"${height}pt\">\n";
+	private void rowProcessed(final ProgressListener.Phase phase, final int totalRows) throws Exception {
+		this.checkAborted();
+		int rows = this.processedRows.incrementAndGet();
+		if (this.progressListener != null) {
+			this.progressListener.progress(phase, rows, totalRows);
+		}
+	}
 
 	/**
-	 * 画像位置指定ブロック終了。
+	 * ExcelファイルからXSL-FOを非同期に作成します。
+	 * <pre>
+	 * 変換はexecutorで実行し、結果はconvert()と同じです。
+	 * 返したCompletableFutureをキャンセルすると、実行中の変換は次の行の処理の前に中断します。
+	 * タイムアウトを過ぎた場合はTimeoutExceptionで異常終了します。
+	 * 1つのインスタンスで同時に実行できる変換は1つです。
+	 * </pre>
+	 * @param executor 変換を実行するExecutor。
+	 * @return 変換結果。
 	 */
-	private static final String IMAGE_BLOCK_END =
-			"				</fo:block-container>\n";
-
-	/**
-	 * 画像の配置タグを作成します。
-	 * @param tinfo テーブル情報。
-	 * @return 画像の配置タグ。
-	 */
-	private String getImageXml(final TableInfo tinfo) {
-		StringBuilder sb = new StringBuilder();
-		for (ImageInfo iinfo: tinfo.getImageList()) {
-			String imageBlockBegin = IMAGE_BLOCK_BEGIN;
-			imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{top\\}", "" + iinfo.getTop());
-			imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{left\\}", "" + iinfo.getLeft());
-			imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{height\\}", "" + iinfo.getHeight());
-			imageBlockBegin = imageBlockBegin.replaceAll("\\$\\{width\\}", "" + iinfo.getWidth());
-			sb.append(imageBlockBegin);
-			sb.append("					<fo:block><fo:external-graphic src=\"" + iinfo .getImageSrc() + "\" width=\"" + iinfo.getWidth() + "pt\" height=\"" + iinfo.getHeight() + "pt\" content-width=\"" + iinfo.getWidth() + "pt\" content-height=\"" + iinfo.getHeight() + "pt\" border-style=\"dotted\" border-width=\"thin\"/></fo:block>\n");
-			sb.append(IMAGE_BLOCK_END);
-		}
-		return sb.toString();
+	public CompletableFuture<String> convertAsync(final Executor executor) {
+		CompletableFuture<String> ret = new CompletableFuture<String>();
+		executor.execute(() -> {
+			if (ret.isDone()) {
+				return;
+			}
+			this.future = ret;
+			try {
+				ret.complete(this.convert());
+			} catch (Throwable e) {
+				ret.completeExceptionally(e);
+			} finally {
+				this.future = null;
+			}
+		});
+		return ret;
 	}
 
-
 	/**
-	 * A4縦用のページマスタ。
+	 * ExcelファイルからXSL-FOを作成し、SAXイベントとして出力します。
+	 * @param handler SAXイベントの送り先。
+	 * @throws Exception 例外。
 	 */
-	private static final String PAGE_MASTER =
-			"	<fo:layout-master-set>\n" +
-			"		<fo:simple-page-master page-height=\"${width}\" page-width=\"${height}\" margin-top=\"0mm\" margin-left=\"0mm\" margin-right=\"0mm\" margin-bottom=\"0mm\" master-name=\"PageMaster\">\n" +
-			"			<fo:region-body margin-top=\"${topMargin}pt\" margin-left=\"${leftMargin}pt\" margin-right=\"${rightMargin}pt\" margin-bottom=\"${bottomMargin}pt\"/>\n" +
-			"		</fo:simple-page-master>\n" +
-			"	</fo:layout-master-set>\n";
-
+	public void convert(final ContentHandler handler) throws Exception {
+		this.convert(new SaxXslFoWriter(handler));
+	}
 
 	/**
-	 * ページマスタを取得します。
-	 * @param height ページの高さ。
-	 * @param width ページの幅。
-	 * @param landscape 横置きフラグ。
-	 * @return ページマスタタグ。
+	 * ExcelファイルからXSL-FOを作成し、XMLStreamWriterに出力します。
+	 * @param writer 出力先。
+	 * @throws Exception 例外。
 	 */
-	private String getPageMaster(final String height, final String width, final boolean landscape) {
-		String pageMaster = PAGE_MASTER;
-		if (landscape) {
-			pageMaster = pageMaster.replaceAll("\\$\\{width\\}", width);
-			pageMaster = pageMaster.replaceAll("\\$\\{height\\}", height);
-		} else {
-			pageMaster = pageMaster.replaceAll("\\$\\{width\\}", height);
-			pageMaster = pageMaster.replaceAll("\\$\\{height\\}", width);
-		}
-		return pageMaster;
+	public void convert(final XMLStreamWriter writer) throws Exception {
+		this.convert(new StaxXslFoWriter(writer));
 	}
 
 	/**
-	 * ページマスタを取得します。
-	 * @param wb ワークブック。
-	 * @param sb ページマスタを追加する文字列バッファ。
+	 * ExcelファイルからXSL-FO形式のXMLを作成します。
+	 * <pre>
+	 * 出力ファイルが指定されている場合、作成したXSL-FOをUTF-8でファイルにも出力します。
+	 * XSLTスタイルシートを出力する設定の場合は、XSL-FOの代わりにXSLTスタイルシートを作成します。
+	 * 文字列が不要な場合は、文字列を作成せずにファイルに出力するconvertToFile()を使用してください。
+	 * </pre>
+	 * @return XSL-FO形式の文字列。
+	 * @throws Exception 例外。
 	 */
-	private void getPageMaster(final Workbook wb, final StringBuilder sb) {
-		Sheet sh = wb.getSheetAt(getSheetIndex());
-		String pageMaster = PAGE_MASTER;
-		logger.debug("paperSize=" + sh.getPrintSetup().getPaperSize());
-		if (sh.getPrintSetup().getPaperSize() == PrintSetup.A3_PAPERSIZE) {
-			pageMaster = this.getPageMaster("420mm", "297mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.A4_PAPERSIZE) {
-			pageMaster = this.getPageMaster("297mm", "210mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.A5_PAPERSIZE) {
-			pageMaster = this.getPageMaster("210mm", "148mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.B4_PAPERSIZE) {
-			pageMaster = this.getPageMaster("354mm", "250mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.B5_PAPERSIZE) {
-			pageMaster = this.getPageMaster("257mm", "182mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.LETTER_PAPERSIZE) {
-			pageMaster = this.getPageMaster("279.4mm", "215.9mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.TABLOID_PAPERSIZE) {
-			pageMaster = this.getPageMaster("431.8mm", "279.4mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.LEGAL_PAPERSIZE) {
-			pageMaster = this.getPageMaster("355.6mm", "215.9mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.STATEMENT_PAPERSIZE) {
-			pageMaster = this.getPageMaster("215.9mm", "139.7mm", sh.getPrintSetup().getLandscape());
-		} else if (sh.getPrintSetup().getPaperSize() == PrintSetup.EXECUTIVE_PAPERSIZE) {
-			pageMaster = this.getPageMaster("266.7mm", "184.1mm", sh.getPrintSetup().getLandscape());
+	public String convert() throws Exception {
+		StringWriter sw = new StringWriter();
+		if (this.isXsltOutput()) {
+			this.convert(new XsltXslFoWriter(sw), true);
 		} else {
-			pageMaster = this.getPageMaster("297mm", "210mm", sh.getPrintSetup().getLandscape());
+			this.convert(new TextXslFoWriter(sw), true);
+		}
+		String xml = sw.toString();
+		logger.debug("XLS-SO:\n" + xml);
+		if (this.xslFoFile != null) {
+			OutputStream out = this.openOutputStream();
+			try {
+				out.write(xml.getBytes(StandardCharsets.UTF_8));
+			} finally {
+				out.close();
+			}
 		}
-		double topMargin = sh.getMargin(Sheet.TopMargin) * 72;
-		double bottomMargin = sh.getMargin(Sheet.BottomMargin) * 72;
-		double leftMargin = sh.getMargin(Sheet.LeftMargin) * 72;
-		double rightMargin = sh.getMargin(Sheet.RightMargin) * 72;
-		pageMaster = pageMaster.replaceAll("\\$\\{topMargin\\}", "" + topMargin);
-		pageMaster = pageMaster.replaceAll("\\$\\{bottomMargin\\}", "" + bottomMargin);
-		pageMaster = pageMaster.replaceAll("\\$\\{leftMargin\\}", "" + leftMargin);
-		pageMaster = pageMaster.replaceAll("\\$\\{rightMargin\\}", "" + rightMargin);
-		sb.append(pageMaster);
+		return xml;
 	}
 
 	/**
-	 * XSL-FO形式のXMLを取得します。
-	 * @param wb ワークブック。
-	 * @param tinfo テーブル情報。
-	 * @return XSL-FO
+	 * 出力ファイルのストリームを開きます。
+	 * <pre>
+	 * gzip形式で圧縮する場合は、出力しながら圧縮するストリームを返します。
+	 * </pre>
+	 * @return 出力ファイルのストリーム。
+	 * @throws Exception 例外。
 	 */
-	private String getXSLFO(final Workbook wb, final TableInfo tinfo) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(XML_ROOT_BEGIN);
-		this.getPageMaster(wb, sb);
-		Font f = wb.getFontAt(0);
-		String pageBegin = PAGE_BEGIN;
-		pageBegin = pageBegin.replaceAll("\\$\\{fontName\\}", f.getFontName());
-		pageBegin = pageBegin.replaceAll("\\$\\{fontPoint\\}", "" + f.getFontHeightInPoints());
-		sb.append(pageBegin);
-		sb.append(this.getTableXml(wb, tinfo));
-		sb.append(this.getImageXml(tinfo));
-		sb.append(this.vImageList.toString());
-		sb.append(PAGE_END);
-		sb.append(XML_ROOT_END);
-		return sb.toString();
+	private OutputStream openOutputStream() throws Exception {
+		OutputStream out = Files.newOutputStream(Paths.get(this.xslFoFile));
+		if (this.isGzipOutput()) {
+			out = new LevelGZIPOutputStream(out, this.compressionLevel);
+		}
+		return out;
 	}
 
 	/**
-	 * ExcelファイルからXSL-FO形式のXMLを作成します。
-	 * @return XSL-FO形式の文字列。
+	 * ExcelファイルからXSL-FOを作成し、出力ファイルに出力します。
+	 * <pre>
+	 * XSL-FOの文字列は作成せず、UTF-8で直接ファイルに出力します。
+	 * gzip形式で圧縮する場合は、出力しながら圧縮します。
+	 * XSLTスタイルシートを出力する設定の場合は、XSL-FOの代わりにXSLTスタイルシートを出力します。
+	 * </pre>
 	 * @throws Exception 例外。
 	 */
-	public String convert() throws Exception {
-		Workbook wb = this.getWorkbook();
-		TableInfo tinfo = this.getTableInfo(wb);
-		String xml = this.getXSLFO(wb, tinfo);
-		logger.debug("XLS-SO:\n" + xml);
-		if (this.xslFoFile != null) {
-			FileOutputStream os = new FileOutputStream(this.xslFoFile);
+	public void convertToFile() throws Exception {
+		if (this.xslFoFile == null) {
+			throw new IllegalStateException("XSL-FO file is not specified.");
+		}
+		if (this.isGzipOutput() || this.isXsltOutput()) {
+			OutputStream out = this.openOutputStream();
 			try {
-				os.write(xml.getBytes("utf-8"));
+				if (this.isXsltOutput()) {
+					Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+					this.convert(new XsltXslFoWriter(writer));
+					writer.flush();
+				} else {
+					this.convert(new Utf8XslFoWriter(out));
+				}
 			} finally {
-				os.close();
+				out.close();
 			}
+			return;
+		}
+		FileChannel ch = FileChannel.open(Paths.get(this.xslFoFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			this.convert(new Utf8XslFoWriter(ch));
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * 圧縮レベルを指定できるGZIPOutputStream。
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream {
+		/**
+		 * コンストラクタ。
+		 * @param out 出力先。
+		 * @param level 圧縮レベル。
+		 * @throws IOException 入出力例外。
+		 */
+		public LevelGZIPOutputStream(final OutputStream out, final int level) throws IOException {
+			super(out, GZIP_BUFFER_SIZE);
+			this.def.setLevel(level);
 		}
-		return xml;
 	}
 
 	/**
@@ -933,7 +2557,7 @@ public class ExcelToXSLFO {
 		conv.setExcelFile(excel);
 		conv.setSheetIndex(sheetIndex);
 		conv.setXslFoFile(fop);
-		conv.convert();
+		conv.convertToFile();
 	}
 
 	/**
@@ -945,12 +2569,22 @@ public class ExcelToXSLFO {
 		ExcelToXSLFO conv = new ExcelToXSLFO();
 		try {
 			conv.parseAargs(args);
-			conv.convert();
+			conv.convertToFile();
 		} catch (ArgException e) {
 			// e.printStackTrace();
 			System.out.println("excel2xslfo [options] excelfile fofile");
 			System.out.println("options:");
 			System.out.println("-s sheetidx");
+			System.out.println("-split {body|page}");
+			System.out.println("-rows splitrows");
+			System.out.println("-notrim");
+			System.out.println("-nocollapse");
+			System.out.println("-digits decimaldigits");
+			System.out.println("-dpi imagedpi");
+			System.out.println("-parallel");
+			System.out.println("-xslt");
+			System.out.println("-gzip");
+			System.out.println("-level compressionlevel");
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 		}
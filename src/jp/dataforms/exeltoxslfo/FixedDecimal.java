@@ -0,0 +1,95 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 固定小数点数の文字列化処理。
+ * <pre>
+ * 数値を指定した小数点以下の桁数で丸めたlong値として扱い、末尾の0を除いた10進数の文字列を作成します。
+ * "119.24000000000001"のようなDouble.toString()の誤差表現を出力しないためのものです。
+ * </pre>
+ */
+public final class FixedDecimal {
+	/**
+	 * 小数点以下の最大桁数。
+	 */
+	public static final int MAX_DIGITS = 9;
+
+	/**
+	 * 小数点以下の桁数のデフォルト。
+	 */
+	public static final int DEFAULT_DIGITS = 2;
+
+	/**
+	 * write()に渡すバッファに必要な長さ。
+	 */
+	public static final int BUFFER_LENGTH = 24;
+
+	/**
+	 * 10のべき乗。
+	 */
+	private static final long[] POW10 = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	/**
+	 * コンストラクタ。
+	 */
+	private FixedDecimal() {
+	}
+
+	/**
+	 * 数値を指定桁数で丸めたlong値に変換します。
+	 * @param value 数値。
+	 * @param digits 小数点以下の桁数。
+	 * @return 数値に10のdigits乗を掛けて丸めた値。
+	 */
+	public static long toScaled(final double value, final int digits) {
+		return Math.round(value * POW10[digits]);
+	}
+
+	/**
+	 * 丸めた数値をASCII文字としてバッファの末尾に書き込みます。
+	 * @param scaled toScaled()で丸めた値。
+	 * @param digits 小数点以下の桁数。
+	 * @param buf 長さBUFFER_LENGTH以上のバッファ。
+	 * @return 書き込んだ文字列の開始位置(終了位置はバッファの末尾)。
+	 */
+	public static int write(final long scaled, final int digits, final byte[] buf) {
+		int pos = buf.length;
+		boolean negative = scaled < 0;
+		long v = negative ? -scaled : scaled;
+		int d = digits;
+		while (d > 0 && v % 10 == 0) {
+			v /= 10;
+			d--;
+		}
+		for (int i = 0; i < d; i++) {
+			buf[--pos] = (byte) ('0' + (v % 10));
+			v /= 10;
+		}
+		if (d > 0) {
+			buf[--pos] = '.';
+		}
+		do {
+			buf[--pos] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v > 0);
+		if (negative) {
+			buf[--pos] = '-';
+		}
+		return pos;
+	}
+
+	/**
+	 * 丸めた数値を文字列に変換します。
+	 * @param scaled toScaled()で丸めた値。
+	 * @param digits 小数点以下の桁数。
+	 * @return 数値の文字列。
+	 */
+	public static String toString(final long scaled, final int digits) {
+		byte[] buf = new byte[BUFFER_LENGTH];
+		int pos = write(scaled, digits, buf);
+		return new String(buf, pos, buf.length - pos, StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,273 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.util.Arrays;
+
+/**
+ * XSL-FO要素の属性リスト。
+ * <pre>
+ * 属性を追加した順に保持します。
+ * XslFoWriterは要素の出力時に属性を読み取るだけなので、clear()して使いまわすことができます。
+ * セルスタイルのように多くの要素で共通の属性は、共有の属性リストをsetStyle()で設定します。
+ * スタイルの属性はこの属性リストの属性の後ろに続くものとして扱われます。
+ * 数値の属性は小数点以下の桁数で丸めたlong値で保持し、文字列が必要になった時点で文字列化します。
+ * </pre>
+ */
+public class FoAttributes {
+	/**
+	 * 属性名の配列。
+	 */
+	private String[] names = new String[16];
+
+	/**
+	 * 属性値の配列。
+	 */
+	private String[] values = new String[16];
+
+	/**
+	 * 数値の属性の丸めた値の配列。
+	 */
+	private long[] numbers = new long[16];
+
+	/**
+	 * 数値の属性の小数点以下の桁数の配列。
+	 */
+	private int[] numberDigits = new int[16];
+
+	/**
+	 * 数値の属性の単位の配列(数値以外の属性はnull)。
+	 */
+	private String[] units = new String[16];
+
+	/**
+	 * 属性数。
+	 */
+	private int length = 0;
+
+	/**
+	 * 小数点以下の桁数。
+	 */
+	private int digits = FixedDecimal.DEFAULT_DIGITS;
+
+	/**
+	 * 共有のスタイル属性リスト。
+	 */
+	private FoAttributes style = null;
+
+	/**
+	 * コンストラクタ。
+	 */
+	public FoAttributes() {
+	}
+
+	/**
+	 * コンストラクタ。
+	 * @param digits 数値の属性の小数点以下の桁数。
+	 */
+	public FoAttributes(final int digits) {
+		this.digits = digits;
+	}
+
+	/**
+	 * 属性を追加します。
+	 * @param name 属性名。
+	 * @param value 属性値。
+	 * @return この属性リスト。
+	 */
+	public FoAttributes add(final String name, final String value) {
+		int i = this.next(name);
+		this.values[i] = value;
+		this.units[i] = null;
+		return this;
+	}
+
+	/**
+	 * 整数値の属性を追加します。
+	 * @param name 属性名。
+	 * @param value 属性値。
+	 * @return この属性リスト。
+	 */
+	public FoAttributes add(final String name, final int value) {
+		return this.addNumber(name, value, 0, "");
+	}
+
+	/**
+	 * 単位付きの数値の属性を追加します。
+	 * <pre>
+	 * 数値は小数点以下の桁数で丸めます。
+	 * </pre>
+	 * @param name 属性名。
+	 * @param value 数値。
+	 * @param unit 単位。
+	 * @return この属性リスト。
+	 */
+	public FoAttributes add(final String name, final double value, final String unit) {
+		return this.addNumber(name, FixedDecimal.toScaled(value, this.digits), this.digits, unit);
+	}
+
+	/**
+	 * 丸めた数値の属性を追加します。
+	 * @param name 属性名。
+	 * @param scaled 丸めた数値。
+	 * @param digits 小数点以下の桁数。
+	 * @param unit 単位。
+	 * @return この属性リスト。
+	 */
+	private FoAttributes addNumber(final String name, final long scaled, final int digits, final String unit) {
+		int i = this.next(name);
+		this.values[i] = null;
+		this.numbers[i] = scaled;
+		this.numberDigits[i] = digits;
+		this.units[i] = unit;
+		return this;
+	}
+
+	/**
+	 * 属性を1つ追加し、そのインデックスを返します。
+	 * @param name 属性名。
+	 * @return 追加した属性のインデックス。
+	 */
+	private int next(final String name) {
+		if (this.length == this.names.length) {
+			int size = this.length * 2;
+			this.names = Arrays.copyOf(this.names, size);
+			this.values = Arrays.copyOf(this.values, size);
+			this.numbers = Arrays.copyOf(this.numbers, size);
+			this.numberDigits = Arrays.copyOf(this.numberDigits, size);
+			this.units = Arrays.copyOf(this.units, size);
+		}
+		this.names[this.length] = name;
+		return this.length++;
+	}
+
+	/**
+	 * 共有のスタイル属性リストを取得します。
+	 * @return 共有のスタイル属性リスト。
+	 */
+	public FoAttributes getStyle() {
+		return this.style;
+	}
+
+	/**
+	 * 共有のスタイル属性リストを設定します。
+	 * <pre>
+	 * 同じスタイルには同じインスタンスを設定してください。
+	 * Utf8XslFoWriterはインスタンス毎にエンコード結果をキャッシュします。
+	 * </pre>
+	 * @param style 共有のスタイル属性リスト。
+	 * @return この属性リスト。
+	 */
+	public FoAttributes setStyle(final FoAttributes style) {
+		this.style = style;
+		return this;
+	}
+
+	/**
+	 * スタイルの属性を含まない属性数を取得します。
+	 * @return 属性数。
+	 */
+	public int getLocalLength() {
+		return this.length;
+	}
+
+	/**
+	 * スタイルの属性を含む属性数を取得します。
+	 * @return 属性数。
+	 */
+	public int getLength() {
+		if (this.style == null) {
+			return this.length;
+		}
+		return this.length + this.style.getLength();
+	}
+
+	/**
+	 * 属性名を取得します。
+	 * @param i インデックス。
+	 * @return 属性名。
+	 */
+	public String getName(final int i) {
+		if (i < this.length) {
+			return this.names[i];
+		}
+		return this.style.getName(i - this.length);
+	}
+
+	/**
+	 * 属性値を取得します。
+	 * @param i インデックス。
+	 * @return 属性値。
+	 */
+	public String getValue(final int i) {
+		if (i < this.length) {
+			if (this.values[i] == null) {
+				this.values[i] = FixedDecimal.toString(this.numbers[i], this.numberDigits[i]) + this.units[i];
+			}
+			return this.values[i];
+		}
+		return this.style.getValue(i - this.length);
+	}
+
+	/**
+	 * 数値の属性かどうかを判定します。
+	 * <pre>
+	 * 数値の属性の場合、getNumber()、getNumberDigits()、getUnit()で値を文字列化せずに取得できます。
+	 * </pre>
+	 * @param i インデックス。
+	 * @return 数値の属性の場合true。
+	 */
+	public boolean isNumber(final int i) {
+		if (i < this.length) {
+			return this.units[i] != null;
+		}
+		return this.style.isNumber(i - this.length);
+	}
+
+	/**
+	 * 数値の属性の丸めた値を取得します。
+	 * @param i インデックス。
+	 * @return 丸めた値。
+	 */
+	public long getNumber(final int i) {
+		if (i < this.length) {
+			return this.numbers[i];
+		}
+		return this.style.getNumber(i - this.length);
+	}
+
+	/**
+	 * 数値の属性の小数点以下の桁数を取得します。
+	 * @param i インデックス。
+	 * @return 小数点以下の桁数。
+	 */
+	public int getNumberDigits(final int i) {
+		if (i < this.length) {
+			return this.numberDigits[i];
+		}
+		return this.style.getNumberDigits(i - this.length);
+	}
+
+	/**
+	 * 数値の属性の単位を取得します。
+	 * @param i インデックス。
+	 * @return 単位。
+	 */
+	public String getUnit(final int i) {
+		if (i < this.length) {
+			return this.units[i];
+		}
+		return this.style.getUnit(i - this.length);
+	}
+
+	/**
+	 * 全ての属性を削除します。
+	 * @return この属性リスト。
+	 */
+	public FoAttributes clear() {
+		Arrays.fill(this.names, 0, this.length, null);
+		Arrays.fill(this.values, 0, this.length, null);
+		Arrays.fill(this.units, 0, this.length, null);
+		this.length = 0;
+		this.style = null;
+		return this;
+	}
+}
@@ -0,0 +1,29 @@
+package jp.dataforms.exeltoxslfo;
+
+/**
+ * 文書の一部を別スレッドで出力できるWriter。
+ * <pre>
+ * createFragment()で作成したWriterに文書の一部を出力し、
+ * writeFragment()で作成した順にこのWriterに書き込みます。
+ * 断片はこのWriterの現在の深さから出力を始め、開始した要素はすべて終了している必要があります。
+ * 断片への出力は断片毎に1つのスレッドで行い、このWriterとは状態を共有しません。
+ * 同じ断片は、同じ深さであれば何度でも書き込むことができます。
+ * ExcelToXSLFOは大きなテーブルの行を複数のスレッドで出力する場合と、同じ内容の行の出力結果を再利用する場合に
+ * このインターフェースを使用します。
+ * </pre>
+ */
+public interface FragmentXslFoWriter extends XslFoWriter {
+	/**
+	 * 現在の深さから出力を始める断片を作成します。
+	 * @return 断片のWriter。
+	 * @throws Exception 例外。
+	 */
+	XslFoWriter createFragment() throws Exception;
+
+	/**
+	 * 断片の内容を書き込みます。
+	 * @param fragment createFragment()で作成した断片のWriter。
+	 * @throws Exception 例外。
+	 */
+	void writeFragment(XslFoWriter fragment) throws Exception;
+}
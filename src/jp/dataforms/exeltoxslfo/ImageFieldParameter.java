@@ -0,0 +1,181 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * イメージフィールドのパラメータ。
+ * <pre>
+ * セルに"${タグ}{Json}"の形式で記述されたイメージフィールドの、Json部分を解析した結果です。
+ * ExcelToXSLFOは変換毎に同じJsonを1度だけ解析し、解析結果を共有します。
+ * </pre>
+ */
+public class ImageFieldParameter {
+	/**
+	 * イメージフィールドのパターン。
+	 */
+	private static final Pattern IMAGE_FIELD_PATTERN = Pattern.compile("(\\$\\{.+?\\})(\\{.+?\\})");
+
+	/**
+	 * イメージフィールドの開始文字列。
+	 */
+	private static final String IMAGE_FIELD_PREFIX = "${";
+
+	/**
+	 * 画像の行数。
+	 */
+	private int rows = 1;
+
+	/**
+	 * 画像のカラム数。
+	 */
+	private int columns = 1;
+
+	/**
+	 * 左上のX方向のオフセット(pt)。
+	 */
+	private int dx1 = 0;
+
+	/**
+	 * 左上のY方向のオフセット(pt)。
+	 */
+	private int dy1 = 0;
+
+	/**
+	 * 右下のX方向のオフセット(pt)。
+	 */
+	private int dx2 = 0;
+
+	/**
+	 * 右下のY方向のオフセット(pt)。
+	 */
+	private int dy2 = 0;
+
+	/**
+	 * 縦横比の指定。
+	 */
+	private String aspect = null;
+
+	/**
+	 * コンストラクタ。
+	 * @param json 画像パラメータのJson。
+	 */
+	public ImageFieldParameter(final String json) {
+		JsonObject obj = JsonParser.parseString(json).getAsJsonObject();
+		this.rows = getInt(obj, "rows", this.rows);
+		this.columns = getInt(obj, "columns", this.columns);
+		this.dx1 = getInt(obj, "dx1", this.dx1);
+		this.dy1 = getInt(obj, "dy1", this.dy1);
+		this.dx2 = getInt(obj, "dx2", this.dx2);
+		this.dy2 = getInt(obj, "dy2", this.dy2);
+		JsonElement e = obj.get("aspect");
+		if (e != null && !e.isJsonNull()) {
+			this.aspect = e.getAsString();
+		}
+	}
+
+	/**
+	 * Jsonの数値を整数で取得します。
+	 * @param obj Jsonオブジェクト。
+	 * @param key キー。
+	 * @param dv デフォルト値。
+	 * @return 値(小数点以下は切り捨て)。
+	 */
+	private static int getInt(final JsonObject obj, final String key, final int dv) {
+		JsonElement e = obj.get(key);
+		if (e == null || e.isJsonNull()) {
+			return dv;
+		}
+		return e.getAsBigDecimal().intValue();
+	}
+
+	/**
+	 * セルの値からイメージフィールドを探します。
+	 * <pre>
+	 * "${"を含まない値は正規表現を使用せずに読み飛ばします。
+	 * </pre>
+	 * @param value セルの値。
+	 * @return イメージフィールドが見つかった場合、画像タグとJsonの2要素の配列。見つからない場合null。
+	 */
+	public static String[] find(final String value) {
+		if (value == null || value.indexOf(IMAGE_FIELD_PREFIX) < 0) {
+			return null;
+		}
+		Matcher m = IMAGE_FIELD_PATTERN.matcher(value);
+		if (m.find()) {
+			return new String[] {m.group(1), m.group(2)};
+		}
+		return null;
+	}
+
+	/**
+	 * 画像の行数を取得します。
+	 * @return 画像の行数。
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * 画像のカラム数を取得します。
+	 * @return 画像のカラム数。
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * 左上のX方向のオフセットを取得します。
+	 * @return 左上のX方向のオフセット(pt)。
+	 */
+	public int getDx1() {
+		return dx1;
+	}
+
+	/**
+	 * 左上のY方向のオフセットを取得します。
+	 * @return 左上のY方向のオフセット(pt)。
+	 */
+	public int getDy1() {
+		return dy1;
+	}
+
+	/**
+	 * 右下のX方向のオフセットを取得します。
+	 * @return 右下のX方向のオフセット(pt)。
+	 */
+	public int getDx2() {
+		return dx2;
+	}
+
+	/**
+	 * 右下のY方向のオフセットを取得します。
+	 * @return 右下のY方向のオフセット(pt)。
+	 */
+	public int getDy2() {
+		return dy2;
+	}
+
+	/**
+	 * 縦横比の指定を取得します。
+	 * @return 縦横比の指定("image"の場合は画像の縦横比を維持)。
+	 */
+	public String getAspect() {
+		return aspect;
+	}
+
+	/**
+	 * 画像の拡大縮小方法を取得します。
+	 * @return 画像の拡大縮小方法(uniform/non-uniform)。
+	 */
+	public String getScaling() {
+		if ("image".equals(this.aspect)) {
+			return "uniform";
+		}
+		return "non-uniform";
+	}
+}
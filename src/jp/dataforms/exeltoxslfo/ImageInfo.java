@@ -1,12 +1,23 @@
 package jp.dataforms.exeltoxslfo;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.PictureData;
 import org.apache.poi.xssf.usermodel.XSSFPictureData;
 
 /**
  * 画像情報。
- *
+ * <pre>
+ * シート上の画像は配置情報と画像データのパッケージパートへの参照のみを保持します。
+ * 画像データは出力時にパートから読み込み、出力後は保持しません。
+ * xlsの画像はパッケージパートを持たないため、ワークブックが保持する画像データを参照します。
+ * </pre>
  */
 public class ImageInfo {
 	/**
@@ -30,9 +41,24 @@ public class ImageInfo {
 	private double width = 0;
 
 	/**
-	 * 画像データ。
+	 * 画像データのパッケージパート。
 	 */
-	private XSSFPictureData imageData = null;
+	private PackagePart imagePart = null;
+
+	/**
+	 * パッケージパートを持たない画像の画像データ。
+	 */
+	private PictureData pictureData = null;
+
+	/**
+	 * イメージフィールドの画像タグ。
+	 */
+	private String imageTag = null;
+
+	/**
+	 * イメージフィールドの画像の拡大縮小方法。
+	 */
+	private String scaling = null;
 
 	/**
 	 * コンストラクタ。
@@ -42,12 +68,69 @@ public class ImageInfo {
 	 * @param width 画像の幅(pt)。
 	 * @param data 画像データ。
 	 */
-	public ImageInfo(final double top, final double left, final double height, final double width, final XSSFPictureData data) {
+	public ImageInfo(final double top, final double left, final double height, final double width, final PictureData data) {
 		this.top = top;
 		this.left = left;
 		this.height = height;
 		this.width = width;
-		this.imageData = data;
+		if (data instanceof XSSFPictureData) {
+			this.imagePart = ((XSSFPictureData) data).getPackagePart();
+		} else {
+			this.pictureData = data;
+		}
+	}
+
+	/**
+	 * コンストラクタ。
+	 * @param top 画像の上端の位置(pt)。
+	 * @param left 画像の左端の位置(pt)。
+	 * @param height 画像の高さ(pt)。
+	 * @param width 画像の幅(pt)。
+	 * @param part 画像データのパッケージパート。
+	 */
+	public ImageInfo(final double top, final double left, final double height, final double width, final PackagePart part) {
+		this.top = top;
+		this.left = left;
+		this.height = height;
+		this.width = width;
+		this.imagePart = part;
+	}
+
+	/**
+	 * イメージフィールドの画像情報を作成するコンストラクタ。
+	 * <pre>
+	 * イメージフィールドの画像はシート上の画像の代わりに、画像タグ("${...}")をsrcに出力します。
+	 * </pre>
+	 * @param top 画像の上端の位置(pt)。
+	 * @param left 画像の左端の位置(pt)。
+	 * @param height 画像の高さ(pt)。
+	 * @param width 画像の幅(pt)。
+	 * @param tag 画像タグ。
+	 * @param scaling 画像の拡大縮小方法(uniform/non-uniform)。
+	 */
+	public ImageInfo(final double top, final double left, final double height, final double width, final String tag, final String scaling) {
+		this.top = top;
+		this.left = left;
+		this.height = height;
+		this.width = width;
+		this.imageTag = tag;
+		this.scaling = scaling;
+	}
+
+	/**
+	 * イメージフィールドの画像かどうかを判定します。
+	 * @return イメージフィールドの画像の場合true。
+	 */
+	public boolean isImageField() {
+		return this.imageTag != null;
+	}
+
+	/**
+	 * イメージフィールドの画像の拡大縮小方法を取得します。
+	 * @return 画像の拡大縮小方法。
+	 */
+	public String getScaling() {
+		return scaling;
 	}
 
 
@@ -84,14 +167,77 @@ public class ImageInfo {
 		return width;
 	}
 
+	/**
+	 * 画像データのMIMEタイプを取得します。
+	 * @return MIMEタイプ。イメージフィールドの場合null。
+	 */
+	public String getMimeType() {
+		if (this.pictureData != null) {
+			return this.pictureData.getMimeType();
+		}
+		if (this.imagePart == null) {
+			return null;
+		}
+		return this.imagePart.getContentType();
+	}
+
+	/**
+	 * 画像データを読み込むストリームを取得します。
+	 * @return 画像データのストリーム。
+	 * @throws Exception 例外。
+	 */
+	private InputStream getImageStream() throws Exception {
+		if (this.pictureData != null) {
+			return new ByteArrayInputStream(this.pictureData.getData());
+		}
+		return this.imagePart.getInputStream();
+	}
+
 	/**
 	 * Base64形式の画像ソースを取得します。
+	 * <pre>
+	 * イメージフィールドの場合は画像タグを返します。
+	 * 画像データは呼び出しの度にパッケージパートから読み込みます。
+	 * 戻り値は出力後に破棄してください。
+	 * </pre>
+	 * @return 画像ソース。
+	 * @throws Exception 例外。
+	 */
+	public String getImageSrc() throws Exception {
+		return this.getImageSrc(null);
+	}
+
+	/**
+	 * 配置サイズに合わせて縮小したBase64形式の画像ソースを取得します。
+	 * @param resampler 画像の縮小処理。nullの場合は縮小しません。
 	 * @return 画像ソース。
+	 * @throws Exception 例外。
 	 */
-	public String getImageSrc() {
-		String ret = "data:" + this.imageData.getMimeType() + ";base64, ";
-		byte [] img = this.imageData.getData();
-		String encoded = Base64.getEncoder().encodeToString(img);
-		return ret + encoded;
+	public String getImageSrc(final ImageResampler resampler) throws Exception {
+		if (this.imageTag != null) {
+			return this.imageTag;
+		}
+		if (resampler != null) {
+			byte[] data;
+			InputStream is = this.getImageStream();
+			try {
+				data = is.readAllBytes();
+			} finally {
+				is.close();
+			}
+			ImageResampler.Image img = resampler.resample(this.getMimeType(), data, this.width, this.height);
+			return "data:" + img.getMimeType() + ";base64, " + Base64.getEncoder().encodeToString(img.getData());
+		}
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		bout.write(("data:" + this.getMimeType() + ";base64, ").getBytes(StandardCharsets.US_ASCII));
+		InputStream is = this.getImageStream();
+		try {
+			OutputStream os = Base64.getEncoder().wrap(bout);
+			is.transferTo(os);
+			os.close();
+		} finally {
+			is.close();
+		}
+		return bout.toString(StandardCharsets.US_ASCII);
 	}
 }
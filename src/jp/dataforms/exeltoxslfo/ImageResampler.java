@@ -0,0 +1,245 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 画像の解像度を落とす処理。
+ * <pre>
+ * 画像の配置サイズ(pt)と指定された解像度(dpi)から必要なピクセル数を求め、
+ * 画像がそれより大きい場合はjavax.imageioで縮小して再エンコードします。
+ * JPEGはJPEG、それ以外はPNGで再エンコードし、元の画像より小さくならない場合は元の画像を使用します。
+ * javax.imageioで読めない形式(EMF等)や、デコードできない画像(CMYKのJPEG等)はそのまま使用します。
+ * 結果は画像データのハッシュと縮小後のサイズをキーとしてJVM内で共有するので、
+ * 同じテンプレートを繰り返し変換する場合は2回目以降の縮小処理を省略します。
+ * </pre>
+ */
+public class ImageResampler {
+	/**
+	 * Logger.
+	 */
+	private static Logger logger = LogManager.getLogger(ImageResampler.class);
+
+	/**
+	 * キャッシュする画像データの合計の最大バイト数。
+	 */
+	private static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * 縮小結果のキャッシュ(LRU)。
+	 */
+	private static Map<String, Image> cache = new LinkedHashMap<String, Image>(16, 0.75f, true);
+
+	/**
+	 * 縮小しなかったことを示すキャッシュの値。
+	 */
+	private static final Image NOT_RESAMPLED = new Image(null, new byte[0]);
+
+	/**
+	 * キャッシュしている画像データの合計バイト数。
+	 */
+	private static long cacheBytes = 0;
+
+	/**
+	 * 画像データ。
+	 */
+	public static class Image {
+		/**
+		 * MIMEタイプ。
+		 */
+		private String mimeType = null;
+
+		/**
+		 * 画像データ。
+		 */
+		private byte[] data = null;
+
+		/**
+		 * コンストラクタ。
+		 * @param mimeType MIMEタイプ。
+		 * @param data 画像データ。
+		 */
+		public Image(final String mimeType, final byte[] data) {
+			this.mimeType = mimeType;
+			this.data = data;
+		}
+
+		/**
+		 * MIMEタイプを取得します。
+		 * @return MIMEタイプ。
+		 */
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/**
+		 * 画像データを取得します。
+		 * @return 画像データ。
+		 */
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	/**
+	 * 解像度(dpi)。
+	 */
+	private int dpi = 0;
+
+	/**
+	 * コンストラクタ。
+	 * @param dpi 解像度(dpi)。
+	 */
+	public ImageResampler(final int dpi) {
+		this.dpi = dpi;
+	}
+
+	/**
+	 * 解像度(dpi)を取得します。
+	 * @return 解像度(dpi)。
+	 */
+	public int getDpi() {
+		return dpi;
+	}
+
+	/**
+	 * 画像を配置サイズと解像度に合わせて縮小します。
+	 * @param mimeType 画像のMIMEタイプ。
+	 * @param data 画像データ。
+	 * @param widthPt 配置する幅(pt)。
+	 * @param heightPt 配置する高さ(pt)。
+	 * @return 縮小した画像。縮小の必要が無い場合や縮小できない場合は元の画像。
+	 * @throws Exception 例外。
+	 */
+	public Image resample(final String mimeType, final byte[] data, final double widthPt, final double heightPt) throws Exception {
+		int w = Math.max(1, (int) Math.ceil(widthPt * this.dpi / 72));
+		int h = Math.max(1, (int) Math.ceil(heightPt * this.dpi / 72));
+		String key = toHex(MessageDigest.getInstance("SHA-256").digest(data)) + ":" + w + "x" + h;
+		Image ret = getCache(key);
+		if (ret == null) {
+			ret = this.resample(data, "image/jpeg".equals(mimeType), w, h);
+			putCache(key, ret);
+		}
+		if (ret == NOT_RESAMPLED) {
+			return new Image(mimeType, data);
+		}
+		return ret;
+	}
+
+	/**
+	 * 画像を指定ピクセル数まで縮小します。
+	 * @param data 画像データ。
+	 * @param jpeg JPEG画像の場合true。
+	 * @param w 幅(ピクセル)。
+	 * @param h 高さ(ピクセル)。
+	 * @return 縮小した画像。縮小の必要が無い場合や縮小できない場合はNOT_RESAMPLED。
+	 * @throws Exception 例外。
+	 */
+	private Image resample(final byte[] data, final boolean jpeg, final int w, final int h) throws Exception {
+		try {
+			return this.resampleImage(data, jpeg, w, h);
+		} catch (IOException | IllegalArgumentException e) {
+			// ImageIOはデコードやエンコードできない画像で例外を発生させる。
+			logger.warn("cannot resample image: " + e.getMessage());
+			return NOT_RESAMPLED;
+		}
+	}
+
+	/**
+	 * javax.imageioで画像を指定ピクセル数まで縮小します。
+	 * @param data 画像データ。
+	 * @param jpeg JPEG画像の場合true。
+	 * @param w 幅(ピクセル)。
+	 * @param h 高さ(ピクセル)。
+	 * @return 縮小した画像。縮小の必要が無い場合や縮小できない場合はNOT_RESAMPLED。
+	 * @throws IOException 画像のデコードまたはエンコードに失敗した場合。
+	 */
+	private Image resampleImage(final byte[] data, final boolean jpeg, final int w, final int h) throws IOException {
+		BufferedImage src = ImageIO.read(new ByteArrayInputStream(data));
+		if (src == null || (src.getWidth() <= w && src.getHeight() <= h)) {
+			return NOT_RESAMPLED;
+		}
+		int type = (jpeg || !src.getColorModel().hasAlpha()) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+		BufferedImage img = src;
+		// 一度に大きく縮小すると画質が落ちるため、1/2ずつ縮小する。
+		do {
+			int nw = Math.max(w, img.getWidth() / 2);
+			int nh = Math.max(h, img.getHeight() / 2);
+			BufferedImage dst = new BufferedImage(nw, nh, type);
+			Graphics2D g = dst.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				g.drawImage(img, 0, 0, nw, nh, null);
+			} finally {
+				g.dispose();
+			}
+			img = dst;
+		} while (img.getWidth() > w || img.getHeight() > h);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		String format = jpeg ? "jpeg" : "png";
+		if (!ImageIO.write(img, format, os) || os.size() >= data.length) {
+			return NOT_RESAMPLED;
+		}
+		logger.debug("resampled " + src.getWidth() + "x" + src.getHeight() + " -> " + img.getWidth() + "x" + img.getHeight()
+			+ ", " + data.length + " -> " + os.size() + " bytes");
+		return new Image("image/" + format, os.toByteArray());
+	}
+
+	/**
+	 * キャッシュから縮小結果を取得します。
+	 * @param key キー。
+	 * @return 縮小結果。
+	 */
+	private static synchronized Image getCache(final String key) {
+		return cache.get(key);
+	}
+
+	/**
+	 * 縮小結果をキャッシュに登録します。
+	 * <pre>
+	 * 合計サイズが上限を超えた場合、最も長く使われていないものから削除します。
+	 * </pre>
+	 * @param key キー。
+	 * @param img 縮小結果。
+	 */
+	private static synchronized void putCache(final String key, final Image img) {
+		Image old = cache.put(key, img);
+		if (old != null) {
+			cacheBytes -= old.getData().length;
+		}
+		cacheBytes += img.getData().length;
+		Iterator<Image> it = cache.values().iterator();
+		while (cacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+			cacheBytes -= it.next().getData().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * バイト列を16進数の文字列に変換します。
+	 * @param b バイト列。
+	 * @return 16進数の文字列。
+	 */
+	private static String toHex(final byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for (byte v: b) {
+			sb.append(Character.forDigit((v >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(v & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,181 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * セル結合範囲のインデックス。
+ * <pre>
+ * セル結合によって非表示になるセルを、セル毎のフラグではなく結合範囲の行方向の区間として管理します。
+ * 行毎に有効な結合範囲をカーソルで取り出し、非表示になるカラムの範囲を1回で読み飛ばすことができます。
+ * インデックスの作成コストは結合範囲の面積ではなく、結合範囲の数に比例します。
+ * </pre>
+ */
+public class MergedRegionIndex {
+
+	/**
+	 * 先頭行の順に並べたテーブル上の結合範囲。
+	 */
+	private List<CellRangeAddress> regionList = null;
+
+	/**
+	 * コンストラクタ。
+	 * <pre>
+	 * シート上の結合範囲を、テーブルの範囲に切り詰めたテーブル上の座標に変換して保持します。
+	 * </pre>
+	 * @param list シート上の結合範囲のリスト。
+	 * @param firstRow テーブルの先頭行に対応するシートの行インデックス。
+	 * @param firstColumn テーブルの先頭カラムに対応するシートのカラムインデックス。
+	 * @param rows テーブルの行数。
+	 * @param cols テーブルのカラム数。
+	 */
+	public MergedRegionIndex(final List<CellRangeAddress> list, final int firstRow, final int firstColumn, final int rows, final int cols) {
+		this.regionList = new ArrayList<CellRangeAddress>(list.size());
+		for (CellRangeAddress rgn: list) {
+			int r0 = Math.max(rgn.getFirstRow() - firstRow, 0);
+			int c0 = Math.max(rgn.getFirstColumn() - firstColumn, 0);
+			int r1 = Math.min(rgn.getLastRow() - firstRow, rows - 1);
+			int c1 = Math.min(rgn.getLastColumn() - firstColumn, cols - 1);
+			if (r0 > r1 || c0 > c1) {
+				continue;
+			}
+			this.regionList.add(new CellRangeAddress(r0, r1, c0, c1));
+		}
+		Collections.sort(this.regionList, new Comparator<CellRangeAddress>() {
+			@Override
+			public int compare(final CellRangeAddress o1, final CellRangeAddress o2) {
+				if (o1.getFirstRow() != o2.getFirstRow()) {
+					return Integer.compare(o1.getFirstRow(), o2.getFirstRow());
+				}
+				return Integer.compare(o1.getFirstColumn(), o2.getFirstColumn());
+			}
+		});
+	}
+
+	/**
+	 * テーブル上の結合範囲のリストを取得します。
+	 * @return 先頭行の順に並べた結合範囲のリスト。
+	 */
+	public List<CellRangeAddress> getRegionList() {
+		return regionList;
+	}
+
+	/**
+	 * 行を順に走査するためのカーソルを作成します。
+	 * @return カーソル。
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * 指定行の直前で分割可能な行を取得します。
+	 * <pre>
+	 * 指定行が複数行の結合範囲の途中にある場合、結合範囲の次の行を返します。
+	 * </pre>
+	 * @param row 分割したい行のインデックス。
+	 * @return 行結合にかからない分割可能な行のインデックス。
+	 */
+	public int getSplittableRow(final int row) {
+		int ret = row;
+		Cursor cursor = this.cursor();
+		boolean moved = true;
+		while (moved) {
+			moved = false;
+			cursor.moveTo(ret);
+			for (CellRangeAddress rgn: cursor.activeList) {
+				if (rgn.getFirstRow() < ret && ret <= rgn.getLastRow()) {
+					ret = rgn.getLastRow() + 1;
+					moved = true;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 結合範囲を行毎に取り出すカーソル。
+	 * <pre>
+	 * 行を昇順に移動する場合、各結合範囲は有効になる行で1回追加され、範囲を抜けた行で1回削除されます。
+	 * </pre>
+	 */
+	public class Cursor {
+		/**
+		 * 現在の行。
+		 */
+		private int row = -1;
+
+		/**
+		 * 次に有効にする結合範囲のインデックス。
+		 */
+		private int next = 0;
+
+		/**
+		 * 現在の行にかかる結合範囲を先頭カラムの順に並べたリスト。
+		 */
+		private List<CellRangeAddress> activeList = new ArrayList<CellRangeAddress>();
+
+		/**
+		 * 指定行に移動します。
+		 * @param r 行インデックス。
+		 */
+		public void moveTo(final int r) {
+			if (r < this.row) {
+				this.row = -1;
+				this.next = 0;
+				this.activeList.clear();
+			}
+			for (int i = this.activeList.size() - 1; i >= 0; i--) {
+				if (this.activeList.get(i).getLastRow() < r) {
+					this.activeList.remove(i);
+				}
+			}
+			while (this.next < regionList.size() && regionList.get(this.next).getFirstRow() <= r) {
+				CellRangeAddress rgn = regionList.get(this.next++);
+				if (rgn.getLastRow() >= r) {
+					int idx = this.activeList.size();
+					while (idx > 0 && this.activeList.get(idx - 1).getFirstColumn() > rgn.getFirstColumn()) {
+						idx--;
+					}
+					this.activeList.add(idx, rgn);
+				}
+			}
+			this.row = r;
+		}
+
+		/**
+		 * 現在の行で、指定カラムが結合によって非表示になる場合、その結合範囲の最終カラムを取得します。
+		 * <pre>
+		 * 結合範囲の起点となるセルは非表示になりません。
+		 * </pre>
+		 * @param col カラムインデックス。
+		 * @return 結合範囲の最終カラム。非表示にならない場合-1。
+		 */
+		public int getCoveredLastColumn(final int col) {
+			int lo = 0;
+			int hi = this.activeList.size() - 1;
+			CellRangeAddress found = null;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				CellRangeAddress rgn = this.activeList.get(mid);
+				if (rgn.getFirstColumn() <= col) {
+					found = rgn;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			if (found == null || found.getLastColumn() < col) {
+				return -1;
+			}
+			if (found.getFirstRow() == this.row && found.getFirstColumn() == col) {
+				return -1;
+			}
+			return found.getLastColumn();
+		}
+	}
+}
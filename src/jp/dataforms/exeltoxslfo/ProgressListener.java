@@ -0,0 +1,32 @@
+package jp.dataforms.exeltoxslfo;
+
+/**
+ * 変換の進捗を受け取るリスナ。
+ * <pre>
+ * ExcelToXSLFOはシートの読み込み時と出力時に、1行処理する毎にprogress()を呼び出します。
+ * 並列処理を行う場合は複数のスレッドから呼び出されるため、スレッドセーフに実装してください。
+ * </pre>
+ */
+public interface ProgressListener {
+	/**
+	 * 処理段階。
+	 */
+	enum Phase {
+		/**
+		 * シートのセル情報の読み込み。
+		 */
+		READ,
+		/**
+		 * XSL-FOの出力。
+		 */
+		WRITE
+	}
+
+	/**
+	 * 進捗を通知します。
+	 * @param phase 処理段階。
+	 * @param rows 処理済みの行数。
+	 * @param totalRows 全体の行数。
+	 */
+	void progress(Phase phase, int rows, int totalRows);
+}
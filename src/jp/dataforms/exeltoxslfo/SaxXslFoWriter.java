@@ -0,0 +1,102 @@
+package jp.dataforms.exeltoxslfo;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * XSL-FOをSAXイベントとしてContentHandlerに渡すWriter。
+ * <pre>
+ * FOPのFop.getDefaultHandler()などに直接接続することで、
+ * テキストへの変換と再解析を行わずにXSL-FOを渡すことができます。
+ * </pre>
+ */
+public class SaxXslFoWriter implements XslFoWriter {
+	/**
+	 * イベントの送り先。
+	 */
+	private ContentHandler handler = null;
+
+	/**
+	 * 属性リスト。
+	 */
+	private AttributesImpl saxAttributes = new AttributesImpl();
+
+	/**
+	 * コンストラクタ。
+	 * @param handler イベントの送り先。
+	 */
+	public SaxXslFoWriter(final ContentHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startDocument() throws Exception {
+		this.handler.startDocument();
+		this.handler.startPrefixMapping("fo", FO_NAMESPACE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endDocument() throws Exception {
+		this.handler.endPrefixMapping("fo");
+		this.handler.endDocument();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startElement(final String name, final FoAttributes attrib) throws Exception {
+		this.saxAttributes.clear();
+		for (int i = 0; i < attrib.getLength(); i++) {
+			String qname = attrib.getName(i);
+			this.saxAttributes.addAttribute(getNamespace(qname), getLocalName(qname), qname, "CDATA", XmlEscaper.removeInvalid(attrib.getValue(i)));
+		}
+		this.handler.startElement(getNamespace(name), getLocalName(name), name, this.saxAttributes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endElement(final String name) throws Exception {
+		this.handler.endElement(getNamespace(name), getLocalName(name), name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void characters(final String text) throws Exception {
+		char[] ch = XmlEscaper.removeInvalid(text).toCharArray();
+		this.handler.characters(ch, 0, ch.length);
+	}
+
+	/**
+	 * 接頭辞付きの名前から名前空間を取得します。
+	 * @param qname 接頭辞付きの名前。
+	 * @return 名前空間。
+	 */
+	protected static String getNamespace(final String qname) {
+		if (qname.startsWith("fo:")) {
+			return FO_NAMESPACE;
+		} else if (qname.startsWith("xml:")) {
+			return XML_NAMESPACE;
+		}
+		return "";
+	}
+
+	/**
+	 * 接頭辞付きの名前からローカル名を取得します。
+	 * @param qname 接頭辞付きの名前。
+	 * @return ローカル名。
+	 */
+	protected static String getLocalName(final String qname) {
+		return qname.substring(qname.indexOf(':') + 1);
+	}
+}
@@ -0,0 +1,80 @@
+package jp.dataforms.exeltoxslfo;
+
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * XSL-FOをStAXのXMLStreamWriterに出力するWriter。
+ */
+public class StaxXslFoWriter implements XslFoWriter {
+	/**
+	 * 出力先。
+	 */
+	private XMLStreamWriter writer = null;
+
+	/**
+	 * ルート要素を出力済みであることを示すフラグ。
+	 */
+	private boolean rootWritten = false;
+
+	/**
+	 * コンストラクタ。
+	 * @param writer 出力先。
+	 */
+	public StaxXslFoWriter(final XMLStreamWriter writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startDocument() throws Exception {
+		this.writer.writeStartDocument("UTF-8", "1.0");
+		this.writer.setPrefix("fo", FO_NAMESPACE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endDocument() throws Exception {
+		this.writer.writeEndDocument();
+		this.writer.flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startElement(final String name, final FoAttributes attrib) throws Exception {
+		this.writer.writeStartElement("fo", SaxXslFoWriter.getLocalName(name), FO_NAMESPACE);
+		if (!this.rootWritten) {
+			this.writer.writeNamespace("fo", FO_NAMESPACE);
+			this.rootWritten = true;
+		}
+		for (int i = 0; i < attrib.getLength(); i++) {
+			String qname = attrib.getName(i);
+			if (qname.startsWith("xml:")) {
+				this.writer.writeAttribute("xml", XML_NAMESPACE, SaxXslFoWriter.getLocalName(qname), XmlEscaper.removeInvalid(attrib.getValue(i)));
+			} else {
+				this.writer.writeAttribute(qname, XmlEscaper.removeInvalid(attrib.getValue(i)));
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endElement(final String name) throws Exception {
+		this.writer.writeEndElement();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void characters(final String text) throws Exception {
+		this.writer.writeCharacters(XmlEscaper.removeInvalid(text));
+	}
+}
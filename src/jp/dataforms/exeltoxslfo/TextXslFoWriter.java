@@ -0,0 +1,159 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * XSL-FOをテキストとして出力するWriter。
+ * <pre>
+ * 子要素はタブでインデントし、文字列を持つ要素は1行で出力します。
+ * 内容の無い要素は空要素タグで出力します。
+ * 文字列と属性値はXmlEscaperでエスケープします。
+ * </pre>
+ */
+public class TextXslFoWriter implements FragmentXslFoWriter {
+	/**
+	 * 出力先。
+	 */
+	private Writer out = null;
+
+	/**
+	 * 現在の要素の深さ。
+	 */
+	private int depth = 0;
+
+	/**
+	 * 開始タグの'&gt;'が未出力であることを示すフラグ。
+	 */
+	private boolean startTagOpen = false;
+
+	/**
+	 * 現在の要素に文字列を出力したことを示すフラグ。
+	 */
+	private boolean textWritten = false;
+
+	/**
+	 * コンストラクタ。
+	 * @param out 出力先。
+	 */
+	public TextXslFoWriter(final Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * 断片を出力するWriterのコンストラクタ。
+	 * @param out 出力先。
+	 * @param depth 出力を始める深さ。
+	 */
+	private TextXslFoWriter(final Writer out, final int depth) {
+		this.out = out;
+		this.depth = depth;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startDocument() throws Exception {
+		this.out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endDocument() throws Exception {
+		this.out.flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startElement(final String name, final FoAttributes attrib) throws Exception {
+		if (this.startTagOpen) {
+			this.out.write(">\n");
+		}
+		this.writeIndent();
+		this.out.write('<');
+		this.out.write(name);
+		if (this.depth == 0) {
+			this.out.write(" xmlns:fo=\"" + FO_NAMESPACE + "\"");
+		}
+		for (int i = 0; i < attrib.getLength(); i++) {
+			this.out.write(' ');
+			this.out.write(attrib.getName(i));
+			this.out.write("=\"");
+			XmlEscaper.escape(attrib.getValue(i), this.out);
+			this.out.write('"');
+		}
+		this.startTagOpen = true;
+		this.textWritten = false;
+		this.depth++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endElement(final String name) throws Exception {
+		this.depth--;
+		if (this.startTagOpen) {
+			this.out.write("/>\n");
+			this.startTagOpen = false;
+		} else if (this.textWritten) {
+			this.out.write("</" + name + ">\n");
+			this.textWritten = false;
+		} else {
+			this.writeIndent();
+			this.out.write("</" + name + ">\n");
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void characters(final String text) throws Exception {
+		if (this.startTagOpen) {
+			this.out.write('>');
+			this.startTagOpen = false;
+		}
+		XmlEscaper.escape(text, this.out);
+		this.textWritten = true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public XslFoWriter createFragment() throws Exception {
+		return new TextXslFoWriter(new StringWriter(), this.depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void writeFragment(final XslFoWriter fragment) throws Exception {
+		String text = ((TextXslFoWriter) fragment).out.toString();
+		if (text.length() == 0) {
+			return;
+		}
+		if (this.startTagOpen) {
+			this.out.write(">\n");
+			this.startTagOpen = false;
+		}
+		this.out.write(text);
+	}
+
+	/**
+	 * 現在の深さのインデントを出力します。
+	 * @throws Exception 例外。
+	 */
+	private void writeIndent() throws Exception {
+		for (int i = 0; i < this.depth; i++) {
+			this.out.write('\t');
+		}
+	}
+}
@@ -0,0 +1,534 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * XSL-FOをUTF-8のバイト列としてチャネルに出力するWriter。
+ * <pre>
+ * TextXslFoWriterと同じ形式で出力します。
+ * タグや属性名、共有のスタイル属性はエンコード済みのバイト列をキャッシュし、
+ * 再利用するダイレクトバッファにコピーしてからまとめてチャネルに書き込みます。
+ * 毎回エンコードするのはセルの値などの可変の文字列のみで、エンコードと同時にXMLのエスケープを行います。
+ * 同じインスタンスの文字列が繰り返し出力された場合は、エスケープ、エンコード済みのバイト列を再利用します。
+ * ValueInternerで重複を除いたセルの値は同じインスタンスになるため、繰り返しの多いシートで効果があります。
+ * </pre>
+ */
+public class Utf8XslFoWriter implements FragmentXslFoWriter {
+	/**
+	 * バッファサイズ。
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * 断片のバッファサイズ。
+	 */
+	private static final int FRAGMENT_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * XML宣言。
+	 */
+	private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * ルート要素の名前空間宣言。
+	 */
+	private static final byte[] FO_NAMESPACE_DECLARATION = (" xmlns:fo=\"" + FO_NAMESPACE + "\"").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * インデント。
+	 */
+	private static final byte[] INDENT = "\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * 開始タグの終了。
+	 */
+	private static final byte[] START_TAG_END = ">\n".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * 空要素タグの終了。
+	 */
+	private static final byte[] EMPTY_TAG_END = "/>\n".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * エスケープが必要な文字(0x40未満)毎のエンコード済みの置き換え文字列。
+	 */
+	private static final byte[][] ENTITY = new byte[0x40][];
+
+	static {
+		for (char c = 0; c < ENTITY.length; c++) {
+			String e = XmlEscaper.getEntity(c);
+			if (e != null) {
+				ENTITY[c] = e.getBytes(StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	/**
+	 * エンコード済み文字列のキャッシュのサイズ(2のべき乗)。
+	 */
+	private static final int TEXT_CACHE_SIZE = 1024;
+
+	/**
+	 * エンコード結果をキャッシュする文字列の最大長。
+	 */
+	private static final int MAX_CACHED_TEXT_LENGTH = 256;
+
+	/**
+	 * 1文字をエスケープ、エンコードした場合の最大バイト数("&amp;quot;")。
+	 */
+	private static final int MAX_BYTES_PER_CHAR = 6;
+
+	/**
+	 * 出力先。
+	 */
+	private WritableByteChannel channel = null;
+
+	/**
+	 * 出力バッファ。
+	 */
+	private ByteBuffer buffer = null;
+
+	/**
+	 * 断片の出力先(断片のWriterの場合のみ)。
+	 */
+	private ByteArrayOutputStream fragmentOut = null;
+
+	/**
+	 * 書き込み済みの断片の内容(断片のWriterの場合のみ)。
+	 * <pre>
+	 * 同じ断片を繰り返し書き込む場合に、内容を毎回コピーしないように保持します。
+	 * </pre>
+	 */
+	private byte[] fragmentBytes = null;
+
+	/**
+	 * 要素名毎のエンコード済み開始タグ("&lt;fo:xxx")。
+	 */
+	private Map<String, byte[]> startTagMap = new HashMap<String, byte[]>();
+
+	/**
+	 * 要素名毎のエンコード済み終了タグ("&lt;/fo:xxx&gt;\n")。
+	 */
+	private Map<String, byte[]> endTagMap = new HashMap<String, byte[]>();
+
+	/**
+	 * 属性名毎のエンコード済みの属性の開始(" xxx=\"")。
+	 */
+	private Map<String, byte[]> attributeNameMap = new HashMap<String, byte[]>();
+
+	/**
+	 * 単位毎のエンコード済みの単位と属性の終了("xx\"")。
+	 */
+	private Map<String, byte[]> unitMap = new HashMap<String, byte[]>();
+
+	/**
+	 * 数値の文字列化用バッファ。
+	 */
+	private byte[] numberBuffer = new byte[FixedDecimal.BUFFER_LENGTH];
+
+	/**
+	 * エンコード済み文字列のキャッシュのキー。
+	 */
+	private String[] textCacheKey = new String[TEXT_CACHE_SIZE];
+
+	/**
+	 * エンコード済み文字列のキャッシュの値。
+	 * <pre>
+	 * 1回目の出力ではキーのみ登録し、2回目の出力でエンコード結果を登録します。
+	 * </pre>
+	 */
+	private byte[][] textCacheValue = new byte[TEXT_CACHE_SIZE][];
+
+	/**
+	 * 共有のスタイル属性リスト毎のエンコード済み属性。
+	 */
+	private Map<FoAttributes, byte[]> styleMap = new IdentityHashMap<FoAttributes, byte[]>();
+
+	/**
+	 * 現在の要素の深さ。
+	 */
+	private int depth = 0;
+
+	/**
+	 * 開始タグの'&gt;'が未出力であることを示すフラグ。
+	 */
+	private boolean startTagOpen = false;
+
+	/**
+	 * 現在の要素に文字列を出力したことを示すフラグ。
+	 */
+	private boolean textWritten = false;
+
+	/**
+	 * コンストラクタ。
+	 * <pre>
+	 * チャネルのクローズは呼び出し元で行ってください。
+	 * </pre>
+	 * @param channel 出力先。
+	 */
+	public Utf8XslFoWriter(final WritableByteChannel channel) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	/**
+	 * コンストラクタ。
+	 * <pre>
+	 * ストリームのクローズは呼び出し元で行ってください。
+	 * </pre>
+	 * @param out 出力先。
+	 */
+	public Utf8XslFoWriter(final OutputStream out) {
+		this(Channels.newChannel(out));
+	}
+
+	/**
+	 * 断片を出力するWriterのコンストラクタ。
+	 * <pre>
+	 * 断片は短命なので、ダイレクトバッファではなくヒープ上のバッファを使用します。
+	 * </pre>
+	 * @param out 出力先。
+	 * @param depth 出力を始める深さ。
+	 */
+	private Utf8XslFoWriter(final ByteArrayOutputStream out, final int depth) {
+		this.fragmentOut = out;
+		this.channel = Channels.newChannel(out);
+		this.buffer = ByteBuffer.allocate(FRAGMENT_BUFFER_SIZE);
+		this.depth = depth;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startDocument() throws Exception {
+		this.write(XML_DECLARATION);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endDocument() throws Exception {
+		this.flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startElement(final String name, final FoAttributes attrib) throws Exception {
+		if (this.startTagOpen) {
+			this.write(START_TAG_END);
+		}
+		this.writeIndent();
+		byte[] tag = this.startTagMap.get(name);
+		if (tag == null) {
+			tag = ("<" + name).getBytes(StandardCharsets.UTF_8);
+			this.startTagMap.put(name, tag);
+		}
+		this.write(tag);
+		if (this.depth == 0) {
+			this.write(FO_NAMESPACE_DECLARATION);
+		}
+		for (int i = 0; i < attrib.getLocalLength(); i++) {
+			if (attrib.isNumber(i)) {
+				this.writeNumberAttribute(attrib.getName(i), attrib.getNumber(i), attrib.getNumberDigits(i), attrib.getUnit(i));
+			} else {
+				this.writeAttribute(attrib.getName(i), attrib.getValue(i));
+			}
+		}
+		FoAttributes style = attrib.getStyle();
+		if (style != null) {
+			byte[] b = this.styleMap.get(style);
+			if (b == null) {
+				b = this.encodeAttributes(style);
+				this.styleMap.put(style, b);
+			}
+			this.write(b);
+		}
+		this.startTagOpen = true;
+		this.textWritten = false;
+		this.depth++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endElement(final String name) throws Exception {
+		this.depth--;
+		if (this.startTagOpen) {
+			this.write(EMPTY_TAG_END);
+			this.startTagOpen = false;
+			return;
+		}
+		if (this.textWritten) {
+			this.textWritten = false;
+		} else {
+			this.writeIndent();
+		}
+		byte[] tag = this.endTagMap.get(name);
+		if (tag == null) {
+			tag = ("</" + name + ">\n").getBytes(StandardCharsets.UTF_8);
+			this.endTagMap.put(name, tag);
+		}
+		this.write(tag);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void characters(final String text) throws Exception {
+		if (this.startTagOpen) {
+			this.write((byte) '>');
+			this.startTagOpen = false;
+		}
+		if (text.length() <= MAX_CACHED_TEXT_LENGTH) {
+			this.writeCachedText(text);
+		} else {
+			this.writeText(text);
+		}
+		this.textWritten = true;
+	}
+
+	/**
+	 * エンコード済み文字列のキャッシュを使用して文字列を出力します。
+	 * @param text 文字列。
+	 * @throws Exception 例外。
+	 */
+	private void writeCachedText(final String text) throws Exception {
+		int slot = System.identityHashCode(text) & (TEXT_CACHE_SIZE - 1);
+		if (this.textCacheKey[slot] != text) {
+			this.textCacheKey[slot] = text;
+			this.textCacheValue[slot] = null;
+			this.writeText(text);
+			return;
+		}
+		byte[] b = this.textCacheValue[slot];
+		if (b != null) {
+			this.write(b);
+			return;
+		}
+		// 途中でバッファを出力しないだけの空きを確保してからエンコードし、結果をキャッシュする。
+		if (this.buffer.remaining() < text.length() * MAX_BYTES_PER_CHAR + 4) {
+			this.flush();
+		}
+		int start = this.buffer.position();
+		this.writeText(text);
+		b = new byte[this.buffer.position() - start];
+		ByteBuffer dup = this.buffer.duplicate();
+		dup.flip();
+		dup.position(start);
+		dup.get(b);
+		this.textCacheValue[slot] = b;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public XslFoWriter createFragment() throws Exception {
+		return new Utf8XslFoWriter(new ByteArrayOutputStream(), this.depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void writeFragment(final XslFoWriter fragment) throws Exception {
+		Utf8XslFoWriter w = (Utf8XslFoWriter) fragment;
+		if (w.fragmentBytes == null) {
+			w.flush();
+			w.fragmentBytes = w.fragmentOut.toByteArray();
+		}
+		if (w.fragmentBytes.length == 0) {
+			return;
+		}
+		if (this.startTagOpen) {
+			this.write(START_TAG_END);
+			this.startTagOpen = false;
+		}
+		this.write(w.fragmentBytes);
+	}
+
+	/**
+	 * 属性を出力します。
+	 * @param name 属性名。
+	 * @param value 属性値。
+	 * @throws Exception 例外。
+	 */
+	private void writeAttribute(final String name, final String value) throws Exception {
+		this.writeAttributeName(name);
+		this.writeText(value);
+		this.write((byte) '"');
+	}
+
+	/**
+	 * 数値の属性を出力します。
+	 * <pre>
+	 * 数値は文字列を作成せずに、直接バッファに書き込みます。
+	 * </pre>
+	 * @param name 属性名。
+	 * @param scaled 丸めた数値。
+	 * @param digits 小数点以下の桁数。
+	 * @param unit 単位。
+	 * @throws Exception 例外。
+	 */
+	private void writeNumberAttribute(final String name, final long scaled, final int digits, final String unit) throws Exception {
+		this.writeAttributeName(name);
+		int pos = FixedDecimal.write(scaled, digits, this.numberBuffer);
+		this.write(this.numberBuffer, pos, this.numberBuffer.length - pos);
+		byte[] b = this.unitMap.get(unit);
+		if (b == null) {
+			b = (XmlEscaper.escape(unit) + "\"").getBytes(StandardCharsets.UTF_8);
+			this.unitMap.put(unit, b);
+		}
+		this.write(b);
+	}
+
+	/**
+	 * 属性名と"=\""を出力します。
+	 * @param name 属性名。
+	 * @throws Exception 例外。
+	 */
+	private void writeAttributeName(final String name) throws Exception {
+		byte[] b = this.attributeNameMap.get(name);
+		if (b == null) {
+			b = (" " + name + "=\"").getBytes(StandardCharsets.UTF_8);
+			this.attributeNameMap.put(name, b);
+		}
+		this.write(b);
+	}
+
+	/**
+	 * 属性リストをエンコードします。
+	 * @param attrib 属性リスト。
+	 * @return エンコードした属性。
+	 */
+	private byte[] encodeAttributes(final FoAttributes attrib) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < attrib.getLength(); i++) {
+			sb.append(' ');
+			sb.append(attrib.getName(i));
+			sb.append("=\"");
+			sb.append(XmlEscaper.escape(attrib.getValue(i)));
+			sb.append('"');
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 現在の深さのインデントを出力します。
+	 * @throws Exception 例外。
+	 */
+	private void writeIndent() throws Exception {
+		int n = this.depth;
+		while (n > 0) {
+			int len = Math.min(n, INDENT.length);
+			this.write(INDENT, 0, len);
+			n -= len;
+		}
+	}
+
+	/**
+	 * 文字列をエスケープし、UTF-8でエンコードして出力します。
+	 * @param text 文字列。
+	 * @throws Exception 例外。
+	 */
+	private void writeText(final String text) throws Exception {
+		int len = text.length();
+		for (int i = 0; i < len; i++) {
+			if (this.buffer.remaining() < 4) {
+				this.flush();
+			}
+			char c = text.charAt(i);
+			if (c < ENTITY.length && ENTITY[c] != null) {
+				this.write(ENTITY[c]);
+			} else if (c < 0x80) {
+				this.buffer.put((byte) c);
+			} else if (c < 0x800) {
+				this.buffer.put((byte) (0xc0 | (c >> 6)));
+				this.buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				this.buffer.put((byte) (0xf0 | (cp >> 18)));
+				this.buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				this.buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				this.buffer.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				// 対になっていないサロゲートはXmlEscaperと同じ文字に置き換える。
+				this.write(XmlEscaper.getEntity(text, i).getBytes(StandardCharsets.UTF_8));
+			} else if (c == 0xfffe || c == 0xffff) {
+				// XMLで使用できない文字は出力しない。
+				continue;
+			} else {
+				this.buffer.put((byte) (0xe0 | (c >> 12)));
+				this.buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				this.buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	/**
+	 * 1バイト出力します。
+	 * @param b 出力するバイト。
+	 * @throws Exception 例外。
+	 */
+	private void write(final byte b) throws Exception {
+		if (!this.buffer.hasRemaining()) {
+			this.flush();
+		}
+		this.buffer.put(b);
+	}
+
+	/**
+	 * バイト列を出力します。
+	 * @param b 出力するバイト列。
+	 * @throws Exception 例外。
+	 */
+	private void write(final byte[] b) throws Exception {
+		this.write(b, 0, b.length);
+	}
+
+	/**
+	 * バイト列を出力します。
+	 * @param b 出力するバイト列。
+	 * @param off 開始位置。
+	 * @param len 長さ。
+	 * @throws Exception 例外。
+	 */
+	private void write(final byte[] b, final int off, final int len) throws Exception {
+		int pos = off;
+		int end = off + len;
+		while (pos < end) {
+			if (!this.buffer.hasRemaining()) {
+				this.flush();
+			}
+			int n = Math.min(end - pos, this.buffer.remaining());
+			this.buffer.put(b, pos, n);
+			pos += n;
+		}
+	}
+
+	/**
+	 * バッファの内容をチャネルに書き込みます。
+	 * @throws Exception 例外。
+	 */
+	public void flush() throws Exception {
+		this.buffer.flip();
+		while (this.buffer.hasRemaining()) {
+			this.channel.write(this.buffer);
+		}
+		this.buffer.clear();
+	}
+}
@@ -0,0 +1,189 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+/**
+ * セルの値の重複を除く処理。
+ * <pre>
+ * 同じ文字列のセルの値を1つのインスタンスで共有し、大きなシートでのヒープ使用量を減らします。
+ * xlsxの共有文字列を参照する文字列セルは共有文字列のインデックス毎に値を保持し、
+ * 2回目以降は共有文字列の取得そのものを省略します。
+ * それ以外の値(数値の書式化結果等)は固定サイズのハッシュ表で重複を除きます。
+ * ハッシュ表は衝突したエントリを上書きするため、メモリ使用量は一定です。
+ * 変換毎に1つ作成して使用します。
+ * 複数のスレッドで共有する場合は、共有文字列を作成時にすべて読み込んでおき、
+ * 共有文字列の配列は読み込み専用として使用します。
+ * </pre>
+ */
+public class ValueInterner {
+	/**
+	 * Logger.
+	 */
+	private static Logger logger = LogManager.getLogger(ValueInterner.class);
+
+	/**
+	 * ハッシュ表のサイズ(2のべき乗)。
+	 */
+	private static final int TABLE_SIZE = 4096;
+
+	/**
+	 * ハッシュ表に登録する文字列の最大長。
+	 */
+	private static final int MAX_LENGTH = 256;
+
+	/**
+	 * 共有文字列のインデックス毎の値。
+	 */
+	private String[] sharedStrings = null;
+
+	/**
+	 * 共有文字列を作成時にすべて読み込んだことを示すフラグ。
+	 */
+	private boolean sharedStringsLoaded = false;
+
+	/**
+	 * 書式化した値のハッシュ表。
+	 */
+	private AtomicReferenceArray<String> table = new AtomicReferenceArray<String>(TABLE_SIZE);
+
+	/**
+	 * 既存のインスタンスを返した回数。
+	 */
+	private LongAdder hitCount = new LongAdder();
+
+	/**
+	 * 値を取得した回数。
+	 */
+	private LongAdder count = new LongAdder();
+
+	/**
+	 * コンストラクタ。
+	 * <pre>
+	 * 1つのスレッドで使用するインスタンスを作成します。
+	 * 共有文字列は最初に参照された時に読み込みます。
+	 * </pre>
+	 * @param wb ワークブック。
+	 */
+	public ValueInterner(final Workbook wb) {
+		this(wb, false);
+	}
+
+	/**
+	 * コンストラクタ。
+	 * @param wb ワークブック。
+	 * @param concurrent 複数のスレッドで共有する場合true。共有文字列をすべて読み込みます。
+	 */
+	public ValueInterner(final Workbook wb, final boolean concurrent) {
+		if (wb instanceof XSSFWorkbook) {
+			SharedStringsTable sst = ((XSSFWorkbook) wb).getSharedStringSource();
+			if (sst == null) {
+				return;
+			}
+			int n = sst.getUniqueCount();
+			this.sharedStrings = new String[n];
+			if (concurrent) {
+				for (int i = 0; i < n; i++) {
+					RichTextString s = sst.getItemAt(i);
+					this.sharedStrings[i] = this.intern(s == null ? null : s.getString());
+				}
+				this.sharedStringsLoaded = true;
+				this.count.reset();
+				this.hitCount.reset();
+			}
+		}
+	}
+
+	/**
+	 * 文字列セルの値を取得します。
+	 * @param cell 文字列セル。
+	 * @return セルの値。
+	 */
+	public String getStringCellValue(final Cell cell) {
+		int idx = this.getSharedStringIndex(cell);
+		if (idx < 0) {
+			return this.intern(cell.getStringCellValue());
+		}
+		String ret = this.sharedStrings[idx];
+		if (ret != null) {
+			this.count.increment();
+			this.hitCount.increment();
+			return ret;
+		}
+		ret = this.intern(cell.getStringCellValue());
+		if (!this.sharedStringsLoaded) {
+			this.sharedStrings[idx] = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * 値の重複を除きます。
+	 * @param value 値。
+	 * @return 同じ値の既存のインスタンスがあればそのインスタンス、無ければ引数の値。
+	 */
+	public String intern(final String value) {
+		this.count.increment();
+		if (value == null || value.length() == 0) {
+			this.hitCount.increment();
+			return "";
+		}
+		if (value.length() > MAX_LENGTH) {
+			return value;
+		}
+		int slot = value.hashCode() & (TABLE_SIZE - 1);
+		String s = this.table.get(slot);
+		if (value.equals(s)) {
+			this.hitCount.increment();
+			return s;
+		}
+		this.table.set(slot, value);
+		return value;
+	}
+
+	/**
+	 * セルが参照している共有文字列のインデックスを取得します。
+	 * @param cell セル。
+	 * @return 共有文字列のインデックス。共有文字列を参照していない場合-1。
+	 */
+	private int getSharedStringIndex(final Cell cell) {
+		if (this.sharedStrings == null || !(cell instanceof XSSFCell)) {
+			return -1;
+		}
+		CTCell ct = ((XSSFCell) cell).getCTCell();
+		if (ct.getT() != STCellType.S || !ct.isSetV()) {
+			return -1;
+		}
+		try {
+			int idx = Integer.parseInt(ct.getV());
+			if (idx < 0 || idx >= this.sharedStrings.length) {
+				return -1;
+			}
+			return idx;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * 既存のインスタンスを返した割合をログに出力します。
+	 */
+	public void logStatistics() {
+		long n = this.count.sum();
+		if (logger.isDebugEnabled() && n > 0) {
+			long hit = this.hitCount.sum();
+			logger.debug("interned values=" + n + ", hit=" + hit + " (" + (hit * 100L / n) + "%)");
+		}
+	}
+}
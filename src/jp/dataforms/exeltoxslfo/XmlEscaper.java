@@ -0,0 +1,181 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.io.Writer;
+
+/**
+ * XMLの特殊文字のエスケープ処理。
+ * <pre>
+ * '&lt;'、'&gt;'、'&amp;'、'"'を実体参照に置き換え、XMLで使用できない制御文字を削除します。
+ * 対になっていないサロゲートは'?'に置き換えます(UTF-8のエンコーダと同じ扱いです)。
+ * 全ての出力方法でこのクラスの規則を使用するため、同じExcelファイルからは出力方法によらず同じ文字のXSL-FOになります。
+ * 特殊文字を含まない部分はまとめて出力するため、エスケープが不要な文字列では新たなオブジェクトを作成しません。
+ * </pre>
+ */
+public final class XmlEscaper {
+	/**
+	 * 特殊文字毎の置き換え文字列(0x40未満の文字のみ)。
+	 * <pre>
+	 * nullの文字はそのまま出力し、空文字列の文字は削除します。
+	 * </pre>
+	 */
+	private static final String[] ENTITY = new String[0x40];
+
+	/**
+	 * 対になっていないサロゲートの置き換え文字列。
+	 */
+	private static final String UNPAIRED_SURROGATE = "?";
+
+	static {
+		for (char c = 0; c < 0x20; c++) {
+			if (c != '\t' && c != '\n' && c != '\r') {
+				ENTITY[c] = "";
+			}
+		}
+		ENTITY['<'] = "&lt;";
+		ENTITY['>'] = "&gt;";
+		ENTITY['&'] = "&amp;";
+		ENTITY['"'] = "&quot;";
+	}
+
+	/**
+	 * コンストラクタ。
+	 */
+	private XmlEscaper() {
+	}
+
+	/**
+	 * 文字の置き換え文字列を取得します。
+	 * @param c 文字。
+	 * @return 置き換え文字列。置き換え不要な場合null、削除する場合空文字列。
+	 */
+	public static String getEntity(final char c) {
+		if (c < ENTITY.length) {
+			return ENTITY[c];
+		}
+		if (c == 0xfffe || c == 0xffff) {
+			return "";
+		}
+		return null;
+	}
+
+	/**
+	 * 文字列中の文字の置き換え文字列を取得します。
+	 * <pre>
+	 * サロゲートは前後の文字と対になっているかを確認します。
+	 * </pre>
+	 * @param text 文字列。
+	 * @param idx 文字の位置。
+	 * @return 置き換え文字列。置き換え不要な場合null、削除する場合空文字列。
+	 */
+	public static String getEntity(final String text, final int idx) {
+		char c = text.charAt(idx);
+		if (!Character.isSurrogate(c)) {
+			return getEntity(c);
+		}
+		if (Character.isHighSurrogate(c)) {
+			if (idx + 1 < text.length() && Character.isLowSurrogate(text.charAt(idx + 1))) {
+				return null;
+			}
+		} else if (idx > 0 && Character.isHighSurrogate(text.charAt(idx - 1))) {
+			return null;
+		}
+		return UNPAIRED_SURROGATE;
+	}
+
+	/**
+	 * XMLで使用できない文字か判定します。
+	 * @param text 文字列。
+	 * @param idx 文字の位置。
+	 * @return XMLで使用できない文字の場合true。
+	 */
+	private static boolean isInvalid(final String text, final int idx) {
+		String e = getEntity(text, idx);
+		return e != null && (e.length() == 0 || e == UNPAIRED_SURROGATE);
+	}
+
+	/**
+	 * エスケープが必要な最初の文字の位置を取得します。
+	 * @param text 文字列。
+	 * @param from 検索開始位置。
+	 * @return エスケープが必要な文字の位置。無い場合-1。
+	 */
+	public static int indexOfSpecial(final String text, final int from) {
+		int len = text.length();
+		for (int i = from; i < len; i++) {
+			if (getEntity(text, i) != null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * XMLで使用できない文字を削除または置き換えます。
+	 * <pre>
+	 * 実体参照への置き換えは行いません。
+	 * エスケープを出力先に任せるSAXやStAXへの出力で、escape()と同じ文字にするために使用します。
+	 * </pre>
+	 * @param text 文字列。
+	 * @return 置き換えた文字列。置き換えが不要な場合は引数の文字列そのもの。
+	 */
+	public static String removeInvalid(final String text) {
+		int len = text.length();
+		StringBuilder sb = null;
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			if (isInvalid(text, i)) {
+				if (sb == null) {
+					sb = new StringBuilder(len);
+				}
+				sb.append(text, start, i);
+				sb.append(getEntity(text, i));
+				start = i + 1;
+			}
+		}
+		if (sb == null) {
+			return text;
+		}
+		sb.append(text, start, len);
+		return sb.toString();
+	}
+
+	/**
+	 * 文字列をエスケープします。
+	 * @param text 文字列。
+	 * @return エスケープした文字列。エスケープが不要な場合は引数の文字列そのもの。
+	 */
+	public static String escape(final String text) {
+		int idx = indexOfSpecial(text, 0);
+		if (idx < 0) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder(text.length() + 16);
+		int start = 0;
+		while (idx >= 0) {
+			sb.append(text, start, idx);
+			sb.append(getEntity(text, idx));
+			start = idx + 1;
+			idx = indexOfSpecial(text, start);
+		}
+		sb.append(text, start, text.length());
+		return sb.toString();
+	}
+
+	/**
+	 * 文字列をエスケープして出力します。
+	 * @param text 文字列。
+	 * @param out 出力先。
+	 * @throws Exception 例外。
+	 */
+	public static void escape(final String text, final Writer out) throws Exception {
+		int start = 0;
+		int idx = indexOfSpecial(text, 0);
+		while (idx >= 0) {
+			out.write(text, start, idx - start);
+			out.write(getEntity(text, idx));
+			start = idx + 1;
+			idx = indexOfSpecial(text, start);
+		}
+		out.write(text, start, text.length() - start);
+	}
+}
@@ -0,0 +1,59 @@
+package jp.dataforms.exeltoxslfo;
+
+/**
+ * XSL-FO文書の出力先。
+ * <pre>
+ * ExcelToXSLFOは変換結果を要素の開始、終了、文字列のイベントとしてこのインターフェースに渡します。
+ * テキストファイルへの出力はその実装の1つで、SAXのContentHandlerやStAXのXMLStreamWriterに
+ * 直接イベントを渡すことで、テキストへの変換と再解析を省くことができます。
+ * 要素名は"fo:table"のように接頭辞付きで渡されます。
+ * </pre>
+ */
+public interface XslFoWriter {
+	/**
+	 * XSL-FOの名前空間。
+	 */
+	String FO_NAMESPACE = "http://www.w3.org/1999/XSL/Format";
+
+	/**
+	 * XMLの名前空間。
+	 */
+	String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+	/**
+	 * 文書の出力を開始します。
+	 * @throws Exception 例外。
+	 */
+	void startDocument() throws Exception;
+
+	/**
+	 * 文書の出力を終了します。
+	 * @throws Exception 例外。
+	 */
+	void endDocument() throws Exception;
+
+	/**
+	 * 要素を開始します。
+	 * <pre>
+	 * 属性リストは呼び出し元で再利用されるため、呼び出しの後で参照してはいけません。
+	 * </pre>
+	 * @param name 接頭辞付きの要素名。
+	 * @param attrib 属性リスト。
+	 * @throws Exception 例外。
+	 */
+	void startElement(String name, FoAttributes attrib) throws Exception;
+
+	/**
+	 * 要素を終了します。
+	 * @param name 接頭辞付きの要素名。
+	 * @throws Exception 例外。
+	 */
+	void endElement(String name) throws Exception;
+
+	/**
+	 * 文字列を出力します。
+	 * @param text 文字列。
+	 * @throws Exception 例外。
+	 */
+	void characters(String text) throws Exception;
+}
@@ -0,0 +1,434 @@
+package jp.dataforms.exeltoxslfo;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * XSL-FOを生成するXSLTスタイルシートを出力するWriter。
+ * <pre>
+ * XSL-FOの要素はxsl:template内のリテラル結果要素として出力し、XSLTプロセッサで処理すると同じXSL-FOになります。
+ * setStyle()で設定された共有のスタイル属性リスト毎に1つのxsl:attribute-setを定義し、
+ * 要素ではxsl:use-attribute-setsでそれを参照するため、セル毎にスタイルの属性を繰り返しません。
+ * xsl:attribute-setの定義にも出力サイズがかかるため、スタイルは最初は属性をそのまま出力し、
+ * 参照による削減量の合計が定義の大きさを上回る回数だけ使用された時点でxsl:attribute-setを定義します。
+ * 参照の方が長くなる短いスタイルは、常に属性をそのまま出力します。
+ * XSLTCのようにテンプレートをメソッドにコンパイルするプロセッサの64KBの制限を超えないように、
+ * テーブルの行は一定の要素数毎に名前付きテンプレートに分けて出力し、ルートのテンプレートから呼び出します。
+ * 行のテンプレートはそのまま出力先に書き込み、行以外の要素から成るルートのテンプレートと
+ * xsl:attribute-setは文書の末尾にまとめて出力します。
+ * リテラル結果要素の属性値は属性値テンプレートとして扱われるため、'{'と'}'は重ねて出力します。
+ * 空白のみの文字列はスタイルシートの読み込み時に削除されないように、xsl:textで出力します。
+ * 埋め込み画像のような長い属性値は、XSLTCの文字列定数の長さの制限を超えないように、
+ * xsl:attributeで分割した文字列として出力します。
+ * </pre>
+ */
+public class XsltXslFoWriter implements XslFoWriter {
+	/**
+	 * XSLTの名前空間。
+	 */
+	public static final String XSL_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
+
+	/**
+	 * テンプレートを分ける要素。
+	 */
+	private static final String TABLE_ROW = "fo:table-row";
+
+	/**
+	 * 1つの行のテンプレートに出力する要素数の目安。
+	 */
+	private static final int ROWS_TEMPLATE_ELEMENTS = 256;
+
+	/**
+	 * xsl:attributeで出力する属性値の長さの下限と分割する長さ。
+	 * <pre>
+	 * UTF-8で64KBに収まるように、1文字3バイトで計算します。
+	 * </pre>
+	 */
+	private static final int LONG_VALUE_LENGTH = 16 * 1024;
+
+	/**
+	 * スタイルの参照の属性。
+	 */
+	private static final String USE_ATTRIBUTE_SETS = " xsl:use-attribute-sets=\"";
+
+	/**
+	 * 最終的な出力先。
+	 */
+	private Writer out = null;
+
+	/**
+	 * ルートのテンプレートの内容。
+	 */
+	private StringWriter rootTemplate = new StringWriter();
+
+	/**
+	 * 現在の出力先(ルートのテンプレートまたは最終的な出力先)。
+	 */
+	private Writer current = null;
+
+	/**
+	 * 現在の要素の深さ。
+	 */
+	private int depth = 0;
+
+	/**
+	 * 開始タグの'&gt;'が未出力であることを示すフラグ。
+	 */
+	private boolean startTagOpen = false;
+
+	/**
+	 * 現在の要素に文字列を出力したことを示すフラグ。
+	 */
+	private boolean textWritten = false;
+
+	/**
+	 * 出力中の行のテンプレートの行の深さ。行のテンプレートを出力していない場合-1。
+	 */
+	private int rowsDepth = -1;
+
+	/**
+	 * 出力中の行のテンプレートの要素数。
+	 */
+	private int rowsElements = 0;
+
+	/**
+	 * 行のテンプレートの数。
+	 */
+	private int rowsTemplates = 0;
+
+	/**
+	 * スタイル属性リスト毎の使用状況。
+	 */
+	private Map<FoAttributes, StyleUsage> styleUsageMap = new IdentityHashMap<FoAttributes, StyleUsage>();
+
+	/**
+	 * xsl:attribute-setを定義するスタイル属性リスト(xsl:attribute-setの名前の順)。
+	 */
+	private List<FoAttributes> attributeSetList = new ArrayList<FoAttributes>();
+
+	/**
+	 * スタイル属性リストの使用状況。
+	 */
+	private static class StyleUsage {
+		/**
+		 * 使用回数。
+		 */
+		private int uses = 0;
+
+		/**
+		 * xsl:attribute-setを定義する使用回数。
+		 */
+		private int threshold = Integer.MAX_VALUE;
+
+		/**
+		 * xsl:attribute-setの名前。定義していない場合null。
+		 */
+		private String name = null;
+	}
+
+	/**
+	 * コンストラクタ。
+	 * @param out 出力先。
+	 */
+	public XsltXslFoWriter(final Writer out) {
+		this.out = out;
+		this.current = this.rootTemplate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startDocument() throws Exception {
+		this.out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		this.out.write("<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"" + XSL_NAMESPACE + "\" xmlns:fo=\"" + FO_NAMESPACE + "\">\n");
+		this.out.write("\t<xsl:output method=\"xml\" encoding=\"UTF-8\"/>\n");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endDocument() throws Exception {
+		this.endRowsTemplate();
+		this.out.write("\t<xsl:template match=\"/\">\n");
+		this.out.write(this.rootTemplate.toString());
+		this.out.write("\t</xsl:template>\n");
+		for (int i = 0; i < this.attributeSetList.size(); i++) {
+			this.writeAttributeSet("s" + (i + 1), this.attributeSetList.get(i));
+		}
+		this.out.write("</xsl:stylesheet>\n");
+		this.out.flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void startElement(final String name, final FoAttributes attrib) throws Exception {
+		if (this.rowsDepth == this.depth && !TABLE_ROW.equals(name)) {
+			this.endRowsTemplate();
+		}
+		if (this.startTagOpen) {
+			this.current.write(">\n");
+			this.startTagOpen = false;
+		}
+		if (this.rowsDepth < 0 && TABLE_ROW.equals(name)) {
+			this.startRowsTemplate();
+		}
+		this.rowsElements++;
+		Writer w = this.current;
+		this.writeIndent();
+		w.write('<');
+		w.write(name);
+		FoAttributes style = attrib.getStyle();
+		String set = (style == null ? "" : this.getAttributeSetName(style));
+		int length = attrib.getLength();
+		if (set.length() > 0) {
+			w.write(USE_ATTRIBUTE_SETS);
+			w.write(set);
+			w.write('"');
+			length = attrib.getLocalLength();
+		}
+		boolean longValue = false;
+		for (int i = 0; i < length; i++) {
+			String value = attrib.getValue(i);
+			if (value.length() > LONG_VALUE_LENGTH) {
+				longValue = true;
+				continue;
+			}
+			w.write(' ');
+			w.write(attrib.getName(i));
+			w.write("=\"");
+			writeAttributeValueTemplate(w, value);
+			w.write('"');
+		}
+		this.startTagOpen = true;
+		this.textWritten = false;
+		this.depth++;
+		if (longValue) {
+			w.write(">\n");
+			this.startTagOpen = false;
+			for (int i = 0; i < length; i++) {
+				String value = attrib.getValue(i);
+				if (value.length() > LONG_VALUE_LENGTH) {
+					this.writeLongAttribute(attrib.getName(i), value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 長い属性値をxsl:attributeで出力します。
+	 * @param name 属性名。
+	 * @param value 属性値。
+	 * @throws Exception 例外。
+	 */
+	private void writeLongAttribute(final String name, final String value) throws Exception {
+		Writer w = this.current;
+		this.writeIndent();
+		w.write("<xsl:attribute name=\"");
+		w.write(name);
+		w.write("\">");
+		int i = 0;
+		while (i < value.length()) {
+			int end = Math.min(value.length(), i + LONG_VALUE_LENGTH);
+			if (end < value.length() && Character.isHighSurrogate(value.charAt(end - 1))) {
+				// サロゲートペアを分割しない。
+				end--;
+			}
+			w.write("<xsl:text>");
+			XmlEscaper.escape(value.substring(i, end), w);
+			w.write("</xsl:text>");
+			i = end;
+		}
+		w.write("</xsl:attribute>\n");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void endElement(final String name) throws Exception {
+		this.depth--;
+		if (this.rowsDepth > this.depth) {
+			this.endRowsTemplate();
+		}
+		Writer w = this.current;
+		if (this.startTagOpen) {
+			w.write("/>\n");
+			this.startTagOpen = false;
+		} else if (this.textWritten) {
+			w.write("</" + name + ">\n");
+			this.textWritten = false;
+		} else {
+			this.writeIndent();
+			w.write("</" + name + ">\n");
+		}
+		if (this.rowsDepth == this.depth && this.rowsElements >= ROWS_TEMPLATE_ELEMENTS) {
+			this.endRowsTemplate();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void characters(final String text) throws Exception {
+		if (this.startTagOpen) {
+			this.current.write('>');
+			this.startTagOpen = false;
+		}
+		writeText(this.current, text);
+		this.textWritten = true;
+	}
+
+	/**
+	 * 行のテンプレートの出力を開始します。
+	 * <pre>
+	 * ルートのテンプレートには行のテンプレートの呼び出しを出力します。
+	 * </pre>
+	 * @throws Exception 例外。
+	 */
+	private void startRowsTemplate() throws Exception {
+		this.rowsTemplates++;
+		String tname = "rows" + this.rowsTemplates;
+		this.writeIndent();
+		this.current.write("<xsl:call-template name=\"" + tname + "\"/>\n");
+		this.out.write("\t<xsl:template name=\"" + tname + "\">\n");
+		this.current = this.out;
+		this.rowsDepth = this.depth;
+		this.rowsElements = 0;
+	}
+
+	/**
+	 * 行のテンプレートの出力を終了します。
+	 * @throws Exception 例外。
+	 */
+	private void endRowsTemplate() throws Exception {
+		if (this.rowsDepth < 0) {
+			return;
+		}
+		this.out.write("\t</xsl:template>\n");
+		this.current = this.rootTemplate;
+		this.rowsDepth = -1;
+	}
+
+	/**
+	 * スタイル属性リストに対応するxsl:attribute-setの名前を取得します。
+	 * <pre>
+	 * 属性をそのまま出力する場合の長さと参照の長さの差を1回の使用での削減量とし、
+	 * 削減量の合計がxsl:attribute-setの定義の長さを上回る使用回数に達するまでは、属性をそのまま出力します。
+	 * </pre>
+	 * @param style スタイル属性リスト。
+	 * @return xsl:attribute-setの名前。属性をそのまま出力する場合空文字列。
+	 */
+	private String getAttributeSetName(final FoAttributes style) {
+		StyleUsage usage = this.styleUsageMap.get(style);
+		if (usage == null) {
+			usage = new StyleUsage();
+			String name = "s" + (this.attributeSetList.size() + 1);
+			int inline = 0;
+			int definition = ("\t<xsl:attribute-set name=\"" + name + "\">\n\t</xsl:attribute-set>\n").length();
+			for (int i = 0; i < style.getLength(); i++) {
+				int len = style.getName(i).length() + style.getValue(i).length();
+				inline += len + " =\"\"".length();
+				definition += len + "\t\t<xsl:attribute name=\"\"></xsl:attribute>\n".length();
+			}
+			int saving = inline - (USE_ATTRIBUTE_SETS.length() + name.length() + 1);
+			if (saving > 0) {
+				usage.threshold = definition / saving + 1;
+			}
+			this.styleUsageMap.put(style, usage);
+		}
+		usage.uses++;
+		if (usage.name == null && usage.uses >= usage.threshold) {
+			this.attributeSetList.add(style);
+			usage.name = "s" + this.attributeSetList.size();
+		}
+		return (usage.name == null ? "" : usage.name);
+	}
+
+	/**
+	 * xsl:attribute-setを出力します。
+	 * @param name xsl:attribute-setの名前。
+	 * @param style スタイル属性リスト。
+	 * @throws Exception 例外。
+	 */
+	private void writeAttributeSet(final String name, final FoAttributes style) throws Exception {
+		this.out.write("\t<xsl:attribute-set name=\"" + name + "\">\n");
+		for (int i = 0; i < style.getLength(); i++) {
+			this.out.write("\t\t<xsl:attribute name=\"");
+			this.out.write(style.getName(i));
+			this.out.write("\">");
+			writeText(this.out, style.getValue(i));
+			this.out.write("</xsl:attribute>\n");
+		}
+		this.out.write("\t</xsl:attribute-set>\n");
+	}
+
+	/**
+	 * xsl:template内の文字列を出力します。
+	 * @param w 出力先。
+	 * @param text 文字列。
+	 * @throws Exception 例外。
+	 */
+	private static void writeText(final Writer w, final String text) throws Exception {
+		if (isWhitespace(text)) {
+			w.write("<xsl:text>");
+			XmlEscaper.escape(text, w);
+			w.write("</xsl:text>");
+		} else {
+			XmlEscaper.escape(text, w);
+		}
+	}
+
+	/**
+	 * 属性値を属性値テンプレートとして出力します。
+	 * @param w 出力先。
+	 * @param value 属性値。
+	 * @throws Exception 例外。
+	 */
+	private static void writeAttributeValueTemplate(final Writer w, final String value) throws Exception {
+		if (value.indexOf('{') < 0 && value.indexOf('}') < 0) {
+			XmlEscaper.escape(value, w);
+		} else {
+			XmlEscaper.escape(value.replace("{", "{{").replace("}", "}}"), w);
+		}
+	}
+
+	/**
+	 * 空白のみの文字列かどうかを判定します。
+	 * <pre>
+	 * XSLTはスタイルシート中の空白のみのテキストノードを削除します。
+	 * </pre>
+	 * @param text 文字列。
+	 * @return 空白のみの場合true。
+	 */
+	private static boolean isWhitespace(final String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 現在の深さのインデントを出力します。
+	 * <pre>
+	 * 出力サイズをXSL-FOと揃えるため、xsl:templateの分は下げずにXSL-FOと同じ深さで出力します。
+	 * </pre>
+	 * @throws Exception 例外。
+	 */
+	private void writeIndent() throws Exception {
+		for (int i = 0; i < this.depth; i++) {
+			this.current.write('\t');
+		}
+	}
+}